@@ -0,0 +1,315 @@
+/*
+ * CPFBenchmark.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+import moa.streams.generators.AgrawalGenerator;
+
+/**
+ * JMH benchmarks for the CPF and ECPF hot paths on synthetic Agrawal streams,
+ * where each of the ten Agrawal functions is one concept. Everything runs
+ * offline. The main method attaches the GC profiler so every benchmark also
+ * reports its allocation rate.
+ *
+ * Lives in moa.classifiers.meta so drift handling, merging and fading can be
+ * driven directly on a prepared learner.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CPFBenchmark {
+
+	static final int TRAIN_INSTANCES = 2000;
+
+	//instances of one concept, each Agrawal function (1-10) is a different concept
+	static Instance[] concept(int function, int seed, int count){
+		AgrawalGenerator stream = new AgrawalGenerator();
+		stream.functionOption.setValue(function);
+		stream.instanceRandomSeedOption.setValue(seed);
+		stream.prepareForUse();
+		Instance[] instances = new Instance[count];
+		for(int i = 0; i < count; i++)
+			instances[i] = stream.nextInstance().getData();
+		return instances;
+	}
+
+	static AbstractCPF newLearner(String learner, String baseLearner, int bufferSize, boolean fade){
+		AbstractCPF cpf = learner.equals("ECPF") ? new ECPF() : new CPF();
+		cpf.baseLearnerOption.setValueViaCLIString(baseLearner);
+		if(cpf instanceof CPF) ((CPF) cpf).bufferSizeOption.setValue(bufferSize);
+		if(fade) cpf.fadeModelOption.set();
+		cpf.prepareForUse();
+		return cpf;
+	}
+
+	//a learner holding numModels models trained on different concepts
+	static AbstractCPF withStoredModels(String learner, String baseLearner, int numModels, int bufferSize, boolean fade){
+		AbstractCPF cpf = newLearner(learner, baseLearner, bufferSize, fade);
+		for(int k = 0; k < numModels; k++){
+			Classifier model;
+			if(cpf instanceof CPF){
+				CPF c = (CPF) cpf;
+				if(k > 0) c.createModel();
+				model = c.classifierCollection.get(c.currentClassifier);
+			} else {
+				ECPF e = (ECPF) cpf;
+				if(k > 0) e.addModel(e.newBaseLearner());
+				e.modelAccuracyMeasurements.set(e.currentClassifier, new Integer[]{TRAIN_INSTANCES, TRAIN_INSTANCES * 3 / 4});
+				model = e.classifierCollection.get(e.currentClassifier);
+			}
+			for(Instance inst : concept(k % 10 + 1, k, TRAIN_INSTANCES))
+				model.trainOnInstance(inst);
+		}
+		return cpf;
+	}
+
+	static void fillBuffer(AbstractCPF cpf, int function, int size){
+		InstanceRingBuffer buffer = (cpf instanceof CPF) ? ((CPF) cpf).buffer : ((ECPF) cpf).buffer;
+		buffer.clear();
+		for(Instance inst : concept(function, 1234, size))
+			buffer.add(inst);
+	}
+
+	@State(Scope.Thread)
+	public static class StreamState {
+
+		@Param({"CPF", "ECPF"})
+		String learner;
+
+		@Param({"bayes.NaiveBayes", "trees.HoeffdingTree"})
+		String baseLearner;
+
+		AbstractCPF cpf;
+		Instance[] instances;
+		int next = 0;
+
+		@Setup(Level.Trial)
+		public void setup(){
+			cpf = newLearner(learner, baseLearner, 60, false);
+			for(Instance inst : concept(1, 1, 20000))
+				cpf.trainOnInstance(inst);
+			//ECPF carries a contending model after its first drift, force one so its dual-model cost is measured
+			if(cpf instanceof ECPF){
+				fillBuffer(cpf, 1, 60);
+				((ECPF) cpf).getNextModel();
+			}
+			instances = concept(1, 2, 100000);
+		}
+
+		@TearDown(Level.Trial)
+		public void close(){
+			cpf.close();
+		}
+
+		Instance next(){
+			Instance inst = instances[next];
+			next = (next + 1 == instances.length) ? 0 : next + 1;
+			return inst;
+		}
+		
+		//offset of the next batch of BATCH_SIZE instances
+		int nextBatch(){
+			if(next + BATCH_SIZE > instances.length) next = 0;
+			int from = next;
+			next += BATCH_SIZE;
+			return from;
+		}
+	}
+	
+	static final int BATCH_SIZE = 1000;
+
+	//steady state test-then-train on a stationary concept
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void train(StreamState state){
+		state.cpf.trainOnInstance(state.next());
+	}
+
+	//same stream as train, reported per instance so the two are directly comparable
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BATCH_SIZE)
+	public BatchSummary trainBatch(StreamState state){
+		int from = state.nextBatch();
+		return state.cpf.trainOnBatch(state.instances, from, from + BATCH_SIZE);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public double[] predict(StreamState state){
+		return state.cpf.getVotesForInstance(state.next());
+	}
+
+	@State(Scope.Thread)
+	public static class DriftState {
+
+		@Param({"CPF", "ECPF"})
+		String learner;
+
+		@Param({"bayes.NaiveBayes", "trees.HoeffdingTree"})
+		String baseLearner;
+
+		@Param({"2", "10", "50"})
+		int storedModels;
+
+		@Param({"60", "250", "1000"})
+		int bufferSize;
+
+		AbstractCPF prototype;
+		AbstractCPF cpf;
+
+		@Setup(Level.Trial)
+		public void setup(){
+			prototype = withStoredModels(learner, baseLearner, storedModels, bufferSize, true);
+			fillBuffer(prototype, 3, bufferSize);
+		}
+
+		//every drift changes the library, so each invocation starts from a fresh copy
+		@Setup(Level.Invocation)
+		public void copy(){
+			cpf = (AbstractCPF) prototype.copy();
+		}
+
+		@TearDown(Level.Invocation)
+		public void closeCopy(){
+			cpf.close();
+		}
+
+		@TearDown(Level.Trial)
+		public void close(){
+			prototype.close();
+		}
+	}
+
+	//latency of the drift step: buffer evaluation, pairwise comparison, model selection or creation, merge and fade
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void driftHandling(DriftState state){
+		if(state.cpf instanceof CPF) ((CPF) state.cpf).getNextModel();
+		else ((ECPF) state.cpf).getNextModel();
+	}
+
+	@State(Scope.Thread)
+	public static class LibraryState {
+
+		@Param({"CPF", "ECPF"})
+		String learner;
+
+		@Param({"10", "100", "400"})
+		int storedModels;
+
+		//whether every pair of models agrees often enough to be merged
+		@Param({"true", "false"})
+		boolean similar;
+
+		AbstractCPF prototype;
+		AbstractCPF cpf;
+		ArrayList<Integer> models;
+
+		@Setup(Level.Trial)
+		public void setup(){
+			//many copies of one model, the cost of merging does not depend on the base learner
+			prototype = withStoredModels(learner, "bayes.NaiveBayes", 1, 60, true);
+			ModelRepository repository = prototype.modelRepository();
+			Classifier model = repository.get(0);
+			for(int k = 1; k < storedModels; k++){
+				if(prototype instanceof CPF) ((CPF) prototype).createModel();
+				else ((ECPF) prototype).addModel(model.copy());
+			}
+			AgreementMatrix agreement = (prototype instanceof CPF) ? ((CPF) prototype).modelComparisonMeasurements
+					: ((ECPF) prototype).modelComparisonMeasurements;
+			for(int j = 1; j < storedModels; j++)
+				for(int i = 0; i < j; i++)
+					agreement.set(i, j, 1000, similar ? 990 : 500);
+			if(prototype instanceof ECPF){
+				ECPF e = (ECPF) prototype;
+				for(int k = 0; k < storedModels; k++)
+					e.modelAccuracyMeasurements.set(k, new Integer[]{1000, 500 + k});
+			}
+		}
+
+		@Setup(Level.Invocation)
+		public void copy(){
+			cpf = (AbstractCPF) prototype.copy();
+			models = cpf.modelRepository().liveModels();
+		}
+
+		@TearDown(Level.Invocation)
+		public void closeCopy(){
+			cpf.close();
+		}
+
+		@TearDown(Level.Trial)
+		public void close(){
+			prototype.close();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void mergeModels(LibraryState state){
+		if(state.cpf instanceof CPF) ((CPF) state.cpf).mergeModels(state.models);
+		else ((ECPF) state.cpf).mergeModels(state.models);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void fadeModels(LibraryState state){
+		if(state.cpf instanceof CPF) ((CPF) state.cpf).fadeModels();
+		else ((ECPF) state.cpf).fadeModels();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(CPFBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * RecurringConceptHarness.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.streams.generators.AgrawalGenerator;
+
+/**
+ * End-to-end run of CPF or ECPF on a long seeded stream of recurring
+ * concepts, for the costs the JMH benchmarks cannot show: hours of drift,
+ * reuse, merging and fading. Records throughput, per-instance latency, the
+ * pauses of instances that handled a drift, the live model count over time
+ * and peak heap, and writes them to a properties file. Given a baseline
+ * report from an earlier run, any metric worse than the baseline by more
+ * than the tolerance fails the run with exit code 1.
+ *
+ * Arguments are key=value pairs, for example
+ * learner=ECPF instances=20000000 concepts=6 pattern=random driftWidth=500
+ * noise=0.05 report=ecpf.properties baseline=ecpf-baseline.properties
+ */
+public class RecurringConceptHarness {
+
+	static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+	static {
+		DEFAULTS.put("learner", "CPF");
+		DEFAULTS.put("baseLearner", "bayes.NaiveBayes");
+		//extra options for the learner, in its CLI form
+		DEFAULTS.put("learnerOptions", "");
+		DEFAULTS.put("instances", "10000000");
+		//each Agrawal function (1-10) is a different concept
+		DEFAULTS.put("concepts", "5");
+		DEFAULTS.put("conceptLength", "50000");
+		//cyclic visits the concepts in turn, random picks any other concept at each drift
+		DEFAULTS.put("pattern", "cyclic");
+		//instances over which the next concept takes over, 0 for abrupt drift
+		DEFAULTS.put("driftWidth", "0");
+		//probability of flipping the class label
+		DEFAULTS.put("noise", "0.0");
+		DEFAULTS.put("seed", "1");
+		DEFAULTS.put("sampleEvery", "100000");
+		DEFAULTS.put("report", "");
+		DEFAULTS.put("baseline", "");
+		//allowed relative loss of throughput and heap, and gain of latency, before a run fails
+		DEFAULTS.put("tolerance", "0.10");
+		//allowed relative gain of latency percentiles, which vary between runs far more than their 3% measurement error
+		DEFAULTS.put("latencyTolerance", "1.5");
+		//allowed absolute loss of prequential accuracy
+		DEFAULTS.put("accuracyTolerance", "0.01");
+	}
+
+	//settings that must match for a baseline to be comparable
+	static final String[] CONFIG = {"learner", "baseLearner", "learnerOptions", "instances", "concepts",
+			"conceptLength", "pattern", "driftWidth", "noise", "seed"};
+
+	/**
+	 * Seeded stream of recurring concepts. The concept changes every
+	 * conceptLength instances, either cyclically or to a random other concept,
+	 * and over driftWidth instances the next concept is mixed in with linearly
+	 * growing probability. Labels are flipped with probability noise.
+	 */
+	static class RecurringConceptStream {
+
+		final AgrawalGenerator[] concepts;
+		final String pattern;
+		final int conceptLength;
+		final int driftWidth;
+		final double noise;
+		final Random random;
+
+		long position = 0;
+		int current = 0;
+		int next;
+
+		RecurringConceptStream(int numConcepts, String pattern, int conceptLength, int driftWidth, double noise, int seed){
+			if(numConcepts < 1 || numConcepts > 10)
+				throw new IllegalStateException("concepts must be between 1 and 10, one per Agrawal function");
+			if(!pattern.equals("cyclic") && !pattern.equals("random"))
+				throw new IllegalStateException("Unknown recurrence pattern: " + pattern);
+			this.concepts = new AgrawalGenerator[numConcepts];
+			for(int k = 0; k < numConcepts; k++){
+				concepts[k] = new AgrawalGenerator();
+				concepts[k].functionOption.setValue(k + 1);
+				concepts[k].instanceRandomSeedOption.setValue(seed + k);
+				concepts[k].prepareForUse();
+			}
+			this.pattern = pattern;
+			this.conceptLength = conceptLength;
+			this.driftWidth = Math.min(driftWidth, conceptLength);
+			this.noise = noise;
+			this.random = new Random(seed);
+			this.next = pickNext();
+		}
+
+		int pickNext(){
+			if(concepts.length == 1) return current;
+			if(pattern.equals("cyclic")) return (current + 1) % concepts.length;
+			int k = random.nextInt(concepts.length - 1);
+			return k >= current ? k + 1 : k;
+		}
+
+		Instance nextInstance(){
+			int offset = (int) (position % conceptLength);
+			if(offset == 0 && position > 0){
+				current = next;
+				next = pickNext();
+			}
+			position++;
+			int concept = current;
+			//the transition to the next concept ends on the concept boundary
+			int into = offset - (conceptLength - driftWidth);
+			if(driftWidth > 0 && into >= 0 && random.nextDouble() < (double) (into + 1) / (double) (driftWidth + 1))
+				concept = next;
+			Instance inst = concepts[concept].nextInstance().getData();
+			if(noise > 0 && random.nextDouble() < noise)
+				inst.setClassValue(inst.classValue() == 0 ? 1 : 0);
+			return inst;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> config = new LinkedHashMap<String, String>(DEFAULTS);
+		for(String arg : args){
+			int split = arg.indexOf('=');
+			if(split < 0 || !DEFAULTS.containsKey(arg.substring(0, split)))
+				throw new IllegalStateException("Unknown argument: " + arg + ", expected one of " + DEFAULTS.keySet());
+			config.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+
+		Properties report = run(config);
+		String reportPath = config.get("report");
+		if(!reportPath.isEmpty()){
+			OutputStream out = new FileOutputStream(reportPath);
+			try {
+				report.store(out, "RecurringConceptHarness report");
+			} finally {
+				out.close();
+			}
+		}
+		for(String key : report.stringPropertyNames())
+			if(!key.startsWith("series.")) System.out.println(key + " = " + report.getProperty(key));
+
+		String baselinePath = config.get("baseline");
+		if(!baselinePath.isEmpty()){
+			Properties baseline = new Properties();
+			InputStream in = new FileInputStream(baselinePath);
+			try {
+				baseline.load(in);
+			} finally {
+				in.close();
+			}
+			if(!compare(report, baseline, config)) System.exit(1);
+		}
+	}
+
+	static Properties run(Map<String, String> config){
+		long instances = Long.parseLong(config.get("instances"));
+		int sampleEvery = Integer.parseInt(config.get("sampleEvery"));
+		RecurringConceptStream stream = new RecurringConceptStream(Integer.parseInt(config.get("concepts")),
+				config.get("pattern"), Integer.parseInt(config.get("conceptLength")),
+				Integer.parseInt(config.get("driftWidth")), Double.parseDouble(config.get("noise")),
+				Integer.parseInt(config.get("seed")));
+
+		AbstractCPF cpf = config.get("learner").equals("ECPF") ? new ECPF() : new CPF();
+		if(!config.get("learnerOptions").isEmpty()) cpf.getOptions().setViaCLIString(config.get("learnerOptions"));
+		cpf.baseLearnerOption.setValueViaCLIString(config.get("baseLearner"));
+		cpf.prepareForUse();
+
+		LatencyHistogram latency = new LatencyHistogram("instance");
+		LatencyHistogram driftPauses = new LatencyHistogram("drift");
+		StringBuilder liveModels = new StringBuilder();
+		StringBuilder heapUsed = new StringBuilder();
+		int maxLiveModels = 0;
+		long correct = 0;
+
+		System.gc();
+		ArrayList<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+			if(pool.getType() != MemoryType.HEAP) continue;
+			pool.resetPeakUsage();
+			heapPools.add(pool);
+		}
+
+		long start = System.nanoTime();
+		for(long i = 1; i <= instances; i++){
+			Instance inst = stream.nextInstance();
+			int drifts = cpf.getNumDrifts();
+			long before = System.nanoTime();
+			//prequential: test on the instance before training on it
+			if(cpf.correctlyClassifies(inst)) correct++;
+			cpf.trainOnInstance(inst);
+			long elapsed = System.nanoTime() - before;
+			latency.record(elapsed);
+			if(cpf.getNumDrifts() != drifts) driftPauses.record(elapsed);
+
+			if(i % sampleEvery == 0){
+				ModelRepository repository = cpf.modelRepository();
+				int live = repository == null ? 0 : repository.liveCount();
+				maxLiveModels = Math.max(maxLiveModels, live);
+				long used = 0;
+				for(MemoryPoolMXBean pool : heapPools)
+					used += pool.getUsage().getUsed();
+				if(liveModels.length() > 0){
+					liveModels.append(',');
+					heapUsed.append(',');
+				}
+				liveModels.append(live);
+				heapUsed.append(used);
+			}
+		}
+		long total = System.nanoTime() - start;
+
+		long peakHeap = 0;
+		for(MemoryPoolMXBean pool : heapPools)
+			peakHeap += pool.getPeakUsage().getUsed();
+
+		Properties report = new Properties();
+		for(String key : CONFIG)
+			report.setProperty("config." + key, config.get(key));
+		report.setProperty("instancesPerSecond", Double.toString(instances / (total / 1e9)));
+		report.setProperty("latencyP50Nanos", Long.toString(latency.getPercentileNanos(0.5)));
+		report.setProperty("latencyP99Nanos", Long.toString(latency.getPercentileNanos(0.99)));
+		report.setProperty("latencyMaxNanos", Long.toString(latency.getMaxNanos()));
+		report.setProperty("driftPauses", Long.toString(driftPauses.getCount()));
+		report.setProperty("driftPauseP50Nanos", Long.toString(driftPauses.getPercentileNanos(0.5)));
+		report.setProperty("driftPauseP99Nanos", Long.toString(driftPauses.getPercentileNanos(0.99)));
+		report.setProperty("driftPauseMaxNanos", Long.toString(driftPauses.getMaxNanos()));
+		report.setProperty("peakHeapBytes", Long.toString(peakHeap));
+		report.setProperty("maxLiveModels", Integer.toString(maxLiveModels));
+		report.setProperty("modelReuses", Integer.toString(cpf.getModelReuses()));
+		report.setProperty("accuracy", Double.toString((double) correct / (double) instances));
+		report.setProperty("series.sampleEvery", Integer.toString(sampleEvery));
+		report.setProperty("series.liveModels", liveModels.toString());
+		report.setProperty("series.heapUsedBytes", heapUsed.toString());
+		cpf.close();
+		return report;
+	}
+
+	/**
+	 * Check a report against a baseline and print one line per metric.
+	 * Returns false if any metric regressed beyond its tolerance. Reports of
+	 * different configurations cannot be compared and fail outright.
+	 */
+	static boolean compare(Properties report, Properties baseline, Map<String, String> config){
+		for(String key : CONFIG){
+			String value = report.getProperty("config." + key);
+			if(!value.equals(baseline.getProperty("config." + key))){
+				System.out.println("FAIL baseline was run with " + key + "=" + baseline.getProperty("config." + key) + ", not " + value);
+				return false;
+			}
+		}
+		double tolerance = Double.parseDouble(config.get("tolerance"));
+		double latencyTolerance = Double.parseDouble(config.get("latencyTolerance"));
+		double accuracyTolerance = Double.parseDouble(config.get("accuracyTolerance"));
+
+		boolean passed = true;
+		passed &= check(report, baseline, "instancesPerSecond", true, tolerance, false);
+		passed &= check(report, baseline, "latencyP50Nanos", false, latencyTolerance, false);
+		passed &= check(report, baseline, "latencyP99Nanos", false, latencyTolerance, false);
+		passed &= check(report, baseline, "driftPauseP50Nanos", false, latencyTolerance, false);
+		passed &= check(report, baseline, "driftPauseP99Nanos", false, latencyTolerance, false);
+		passed &= check(report, baseline, "peakHeapBytes", false, tolerance, false);
+		passed &= check(report, baseline, "maxLiveModels", false, tolerance, false);
+		passed &= check(report, baseline, "accuracy", true, accuracyTolerance, true);
+		return passed;
+	}
+
+	static boolean check(Properties report, Properties baseline, String key, boolean higherIsBetter, double tolerance, boolean absolute){
+		double value = Double.parseDouble(report.getProperty(key));
+		if(baseline.getProperty(key) == null){
+			System.out.println(String.format("NEW  %-20s %14.4g", key, value));
+			return true;
+		}
+		double expected = Double.parseDouble(baseline.getProperty(key));
+		double allowed = absolute ? tolerance : Math.abs(expected) * tolerance;
+		boolean passed = higherIsBetter ? value >= expected - allowed : value <= expected + allowed;
+		System.out.println(String.format("%s %-20s %14.4g baseline %14.4g", passed ? "OK  " : "FAIL", key, value, expected));
+		return passed;
+	}
+}
@@ -19,15 +19,41 @@
 
 package moa.classifiers.meta;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import com.github.javacliparser.IntOption;
+import com.github.javacliparser.Option;
+import com.github.javacliparser.MultiChoiceOption;
+import com.github.javacliparser.StringOption;
 import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
 
+import moa.classifiers.Classifier;
+import moa.classifiers.SemiSupervisedLearner;
+import moa.classifiers.core.driftdetection.ChangeDetector;
 import moa.classifiers.drift.DriftDetectionMethodClassifierExt;
 import moa.core.Measurement;
 import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.FloatOption;
 
-public class AbstractCPF extends DriftDetectionMethodClassifierExt {
+public class AbstractCPF extends DriftDetectionMethodClassifierExt implements AutoCloseable {
 
 	private static final long serialVersionUID = 1L;
 
@@ -48,6 +74,497 @@ public class AbstractCPF extends DriftDetectionMethodClassifierExt {
             "The size of the buffer",
             15, 0, 1000);
     
+    public IntOption maxBufferSizeOption = new IntOption(
+            "maxBufferSize",
+            'w',
+            "The maximum number of warning zone instances kept in the buffer, older instances are overwritten",
+            1000, 1, Integer.MAX_VALUE);
+    
+    public IntOption hotModelsOption = new IntOption(
+            "hotModels",
+            'h',
+            "The number of stored models kept on the heap, colder models are spilled to a memory-mapped file (0 keeps all models on the heap)",
+            0, 0, Integer.MAX_VALUE);
+    
+    public StringOption spillDirectoryOption = new StringOption(
+            "spillDirectory",
+            's',
+            "Directory for the memory-mapped file of cold models (empty uses the system temporary directory)",
+            "");
+    
+    public FlagOption parallelEvaluationOption = new FlagOption(
+            "parallelEvaluation",
+            'e',
+            "A flag that evaluates stored models on the buffer in parallel when drift is detected");
+    
+    public IntOption evaluationThreadsOption = new IntOption(
+            "evaluationThreads",
+            't',
+            "The number of threads for parallel buffer evaluation (0 uses the common fork-join pool)",
+            0, 0, 1024);
+    
+    public FlagOption earlyTerminationOption = new FlagOption(
+            "earlyTermination",
+            'y',
+            "A flag that stops testing a model on the buffer as soon as the model selection is decided, model agreement is then only counted on the instances both models were tested on, so merging can differ from a full evaluation");
+    
+    public FlagOption incrementalScoringOption = new FlagOption(
+            "incrementalScoring",
+            'i',
+            "A flag that tests stored models on each warning zone instance as it is buffered, so drift handling only tests the active and cold models (not used with earlyTermination)");
+    
+    public FloatOption maxMemoryOption = new FloatOption(
+            "maxMemory",
+            'z',
+            "The memory budget in MiB for stored models, models are evicted at drift and every budgetCheckFreq instances to stay within it (0 for no budget)",
+            0, 0, Double.MAX_VALUE);
+    
+    public IntOption budgetCheckFreqOption = new IntOption(
+            "budgetCheckFreq",
+            'j',
+            "The number of trained instances between memory budget checks outside drift handling, each measures the current model again (0 only checks at drift)",
+            1000, 0, Integer.MAX_VALUE);
+    
+    public MultiChoiceOption evictionPolicyOption = new MultiChoiceOption(
+            "evictionPolicy",
+            'v',
+            "Which stored model is evicted first when over the memory budget",
+            new String[]{"LRU", "LFU", "size", "fadeScore"},
+            new String[]{"Least recently selected model",
+                "Least often selected model",
+                "Largest model",
+                "Model with the lowest fade score"},
+            0);
+    
+    public IntOption servingIntervalOption = new IntOption(
+            "servingInterval",
+            'u',
+            "The number of instances between copies of the active model published for getServingVotes, which is safe to call from other threads (0 disables concurrent serving)",
+            0, 0, Integer.MAX_VALUE);
+    
+    public IntOption servingCopiesOption = new IntOption(
+            "servingCopies",
+            'R',
+            "The number of copies of the active model taken at each servingInterval, the number of threads that can call getServingVotes at once without waiting",
+            4, 1, 1024);
+    
+    //counters shared by CPF and ECPF
+    int numberInstances = 0;
+    int totalBufferInstances = 0;
+    int numDrifts = 0;
+    int modelReuses = 0;
+    int modelMerges = 0;
+    int newClassifiersCreated = 0;
+    int maxModels = 0;
+    int currentModels = 0;
+    int modelsFaded = 0;
+    int modelsEvicted = 0;
+    int slotCompactions = 0;
+    long modelCountSum = 0;
+    //model tests on buffered instances at drift, and tests skipped by early termination
+    long bufferTests = 0;
+    long bufferTestsSkipped = 0;
+    //model tests done by incremental scoring as instances were buffered
+    long bufferTestsAhead = 0;
+    long servingSnapshots = 0;
+    
+    //latency of each drift handling phase
+    LatencyHistogram bufferEvaluationLatency = new LatencyHistogram("buffer evaluation");
+    LatencyHistogram pairwiseComparisonLatency = new LatencyHistogram("pairwise comparison");
+    LatencyHistogram mergeLatency = new LatencyHistogram("merge");
+    LatencyHistogram fadeLatency = new LatencyHistogram("fade");
+    LatencyHistogram newModelLatency = new LatencyHistogram("new model training");
+    LatencyHistogram bufferStallLatency = new LatencyHistogram("buffer stall");
+    
+    void resetMeasurements(){
+    	this.numberInstances = 0;
+    	this.totalBufferInstances = 0;
+    	this.numDrifts = 0;
+    	this.modelReuses = 0;
+    	this.modelMerges = 0;
+    	this.newClassifiersCreated = 0;
+    	this.maxModels = 0;
+    	this.currentModels = 0;
+    	this.modelsFaded = 0;
+    	this.modelsEvicted = 0;
+    	this.slotCompactions = 0;
+    	this.modelCountSum = 0;
+    	this.bufferTests = 0;
+    	this.bufferTestsSkipped = 0;
+    	this.bufferTestsAhead = 0;
+    	this.servingSnapshots = 0;
+    	for(LatencyHistogram phase : getPhaseLatencies())
+    		phase.reset();
+    }
+    
+    //delivers events to listeners off the training thread, null until a listener is added
+    transient CPFEventDispatcher eventDispatcher;
+
+    static final int EVENT_QUEUE_CAPACITY = 4096;
+
+    /**
+     * Register a listener for drift, warning, reuse, new model, merge and fade
+     * events. Listeners are called on a background thread, and events are
+     * dropped rather than slowing training down when the listeners fall behind.
+     */
+    public synchronized void addListener(CPFListener listener){
+    	if(eventDispatcher == null)
+    		eventDispatcher = new CPFEventDispatcher(EVENT_QUEUE_CAPACITY);
+    	eventDispatcher.addListener(listener);
+    }
+
+    public synchronized void removeListener(CPFListener listener){
+    	if(eventDispatcher == null) return;
+    	eventDispatcher.removeListener(listener);
+    	if(!eventDispatcher.hasListeners()){
+    		eventDispatcher.close();
+    		eventDispatcher = null;
+    	}
+    }
+
+    /**
+     * Stop the learner's background threads and delete its spill file. The
+     * stored models are released, so the learner must not be used afterwards.
+     * A learner dropped without being closed keeps its event thread while it
+     * has listeners and its spill file until the JVM exits, its other threads
+     * stop once idle.
+     */
+    @Override
+    public void close(){
+    	synchronized(this){
+    		if(eventDispatcher != null){
+    			eventDispatcher.close();
+    			eventDispatcher = null;
+    		}
+    	}
+    	if(evaluationPool != null){
+    		evaluationPool.shutdown();
+    		evaluationPool = null;
+    	}
+    	ModelRepository repository = modelRepository();
+    	if(repository != null) repository.close();
+    }
+
+    public long getDroppedEvents(){
+    	return eventDispatcher == null ? 0 : eventDispatcher.getDroppedEvents();
+    }
+
+    //only allocates an event when someone is listening
+    void emit(CPFEvent.Type type, int modelId, int otherModelId, int bufferSize, long durationNanos){
+    	emit(type, modelId, otherModelId, bufferSize, 0, durationNanos);
+    }
+
+    void emit(CPFEvent.Type type, int modelId, int otherModelId, int bufferSize, long bytes, long durationNanos){
+    	CPFEventDispatcher dispatcher = eventDispatcher;
+    	if(dispatcher == null) return;
+    	dispatcher.publish(new CPFEvent(type, numberInstances, modelId, otherModelId, bufferSize, bytes, durationNanos));
+    }
+
+    //votes already computed for the latest instance, shared by a prediction and the training step after it
+    transient VoteCache voteCache;
+
+    //Votes of model for inst, computed at most once per instance between training steps.
+    //The returned array is shared with the cache and must not be modified
+    double[] cachedVotes(Classifier model, Instance inst){
+    	if(voteCache == null) voteCache = new VoteCache();
+    	return voteCache.votes(model, inst);
+    }
+
+    //called whenever a model may have been trained or replaced
+    void invalidateVotes(){
+    	if(voteCache != null) voteCache.advance();
+    }
+
+    //copies of the active model for serving threads, replaced as a whole so readers never see a concept switch half done
+    transient volatile ServingSnapshot serving;
+    //live model the snapshot was copied from, and the instance count when it was copied
+    transient Classifier servingSource;
+    transient long servingPublishedAt;
+
+    /**
+     * Votes of the latest published copy of the active model. Unlike
+     * getVotesForInstance this may be called from any number of threads while
+     * another thread trains the learner, it never waits for training and always
+     * sees one complete concept. Each call predicts with one of the
+     * servingCopies copies taken when the snapshot was published, which no
+     * other thread uses meanwhile. Requires servingInterval, and lags training
+     * by at most that many instances, in trainOnBatch too, except that a
+     * concept switch is published as soon as the instance that caused it has
+     * been trained on.
+     */
+    public double[] getServingVotes(Instance inst){
+    	ServingSnapshot snapshot = serving;
+    	if(snapshot == null)
+    		throw new IllegalStateException("No model has been published for serving, set servingInterval and train the learner");
+    	return snapshot.getVotesForInstance(inst);
+    }
+
+    public ServingSnapshot getServingSnapshot(){
+    	return serving;
+    }
+
+    @Override
+    public void trainOnInstance(Instance inst){
+    	if(acceptForTraining(inst)) trainOnInstanceImpl(inst);
+    	refreshServing();
+    }
+
+    //AbstractClassifier.trainOnInstance's gate, shared with the batch path so both skip the same instances:
+    //weighted instances are trained on if they have a class value, and their weight is counted
+    boolean acceptForTraining(Instance inst){
+    	boolean train = isTrainable(inst);
+    	if(train) this.trainingWeightSeenByModel += inst.weight();
+    	return train;
+    }
+
+    //the gate alone, for learners such as KeyedCPF that train on this learner's settings
+    boolean isTrainable(Instance inst){
+    	return inst.weight() > 0 && (this instanceof SemiSupervisedLearner || !inst.classIsMissing());
+    }
+
+    //Publish a new copy of the active model when it was replaced or servingInterval instances have passed.
+    //Only called from the training thread between instances, when the active model is not changing
+    void refreshServing(){
+    	int interval = servingIntervalOption.getValue();
+    	if(interval == 0) return;
+    	Classifier model = activeModel();
+    	if(model == null) return;
+    	if(model == servingSource && numberInstances - servingPublishedAt < interval) return;
+    	serving = new ServingSnapshot(model, servingCopiesOption.getValue(), activeSlot(), numberInstances, servingSnapshots);
+    	servingSource = model;
+    	servingPublishedAt = numberInstances;
+    	servingSnapshots++;
+    }
+
+    void resetServing(){
+    	serving = null;
+    	servingSource = null;
+    	refreshServing();
+    }
+
+    //the model currently used for prediction and its slot, overridden by learners that store models
+    Classifier activeModel(){
+    	return null;
+    }
+
+    int activeSlot(){
+    	return -1;
+    }
+
+    //scratch union-find for the merges of one drift
+    transient MergeGroups mergeGroups;
+
+    MergeGroups mergeGroups(){
+    	if(mergeGroups == null) mergeGroups = new MergeGroups();
+    	return mergeGroups;
+    }
+
+    //Pairs of models whose agreement changed since the last merge check, as positions in models packed as
+    //older position << 32 | newer position and sorted, which is the order an all-pairs scan of models visits them in.
+    //Pairs that are unchanged were below similarityMargin when last checked, so only these can lead to a merge
+    long[] changedPairs(AgreementMatrix matrix, ArrayList<Integer> models){
+    	long[] changed = matrix.takeChanged();
+    	int[] position = new int[matrix.slots()];
+    	Arrays.fill(position, -1);
+    	for(int p = 0; p < models.size(); p++)
+    		position[models.get(p)] = p;
+    	int count = 0;
+    	for(long pair : changed){
+    		int a = position[(int) (pair >>> 32)], b = position[(int) pair];
+    		if(a < 0 || b < 0) continue;
+    		changed[count++] = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    	}
+    	Arrays.sort(changed, 0, count);
+    	return Arrays.copyOf(changed, count);
+    }
+
+    //error bits of stored models on the buffer, filled in as instances are buffered when incrementalScoring is set
+    transient BufferScorer bufferScorer;
+
+    //add a warning zone instance to the buffer, scoring the stored models on it when incrementalScoring is set
+    void addToBuffer(InstanceRingBuffer buffer, Instance inst){
+    	int position = buffer.add(inst);
+    	if(!incrementalScoringOption.isSet() || earlyTerminationOption.isSet() || modelRepository() == null) return;
+    	if(bufferScorer == null) bufferScorer = new BufferScorer();
+    	bufferTestsAhead += bufferScorer.score(buffer, position, inst, modelRepository(), activeSlot());
+    }
+
+    //pool for parallel buffer evaluation, created on first use
+    transient ForkJoinPool evaluationPool;
+    
+    //scratch space for pairwise disagreement counts, reused across drifts
+    transient int[] pairDisagreements = new int[0];
+    
+    //Test each model on every buffered instance. Bit j of a model's error mask is set when it misclassifies instance j.
+    //In parallel mode each model is tested by its own fork-join task, so results match the serial path exactly
+    //Models are fetched from the repository one at a time so cold models are only loaded while they are tested.
+    //Models already scored on the whole buffer by incremental scoring just have their bits copied, and a shared copy
+    //and the stored model it shares are tested once, so no two tasks ever read the same model
+    long[][] evaluateModelsOnBuffer(ModelRepository repository, ArrayList<Integer> models, InstanceRingBuffer buffer){
+    	long[][] results = new long[models.size()][AgreementKernel.words(buffer.size())];
+    	ArrayList<Integer> pending = models;
+    	long[][] pendingResults = results;
+    	if(bufferScorer != null){
+    		pending = new ArrayList<Integer>();
+    		ArrayList<long[]> rows = new ArrayList<long[]>();
+    		for(int i = 0; i < models.size(); i++){
+    			int slot = models.get(i);
+    			Classifier model = repository.peekHot(slot);
+    			if(model != null && bufferScorer.isComplete(slot, model, buffer)){
+    				bufferScorer.copyErrors(slot, buffer, results[i]);
+    			} else {
+    				pending.add(slot);
+    				rows.add(results[i]);
+    			}
+    		}
+    		pendingResults = rows.toArray(new long[rows.size()][]);
+    	}
+    	int[] sameAs = sameModels(repository, pending);
+    	ArrayList<Integer> distinct = new ArrayList<Integer>();
+    	ArrayList<long[]> distinctRows = new ArrayList<long[]>();
+    	for(int i = 0; i < pending.size(); i++){
+    		if(sameAs[i] != i) continue;
+    		distinct.add(pending.get(i));
+    		distinctRows.add(pendingResults[i]);
+    	}
+    	long[][] distinctResults = distinctRows.toArray(new long[distinctRows.size()][]);
+    	Instance[] instances = buffer.views();
+    	bufferTests += (long) distinct.size() * buffer.size();
+    	
+    	if(parallelEvaluationOption.isSet() && distinct.size() > 1){
+    		getEvaluationPool().invoke(new BufferEvaluationTask(repository, distinct, instances, buffer.size(), distinctResults, 0, distinct.size()));
+    	} else {
+    		for(int i = 0; i < distinct.size(); i++)
+    			evaluateModelOnBuffer(repository, distinct.get(i), instances, buffer.size(), distinctResults[i]);
+    	}
+    	for(int i = 0; i < pending.size(); i++)
+    		if(sameAs[i] != i) System.arraycopy(pendingResults[sameAs[i]], 0, pendingResults[i], 0, pendingResults[i].length);
+    	return results;
+    }
+    
+    //For each model, the first position holding the same model on the heap, which is its own position unless it is
+    //a shared copy of an earlier model or the stored model of an earlier shared copy. Cold models are never the same
+    static int[] sameModels(ModelRepository repository, ArrayList<Integer> models){
+    	int[] sameAs = new int[models.size()];
+    	IdentityHashMap<Classifier, Integer> first = new IdentityHashMap<Classifier, Integer>();
+    	for(int i = 0; i < models.size(); i++){
+    		sameAs[i] = i;
+    		Classifier model = repository.peekHot(models.get(i));
+    		if(model instanceof CopyOnWriteClassifier) model = ((CopyOnWriteClassifier) model).target();
+    		if(model == null) continue;
+    		Integer earlier = first.get(model);
+    		if(earlier != null) sameAs[i] = earlier;
+    		else first.put(model, i);
+    	}
+    	return sameAs;
+    }
+    
+    static void evaluateModelOnBuffer(ModelRepository repository, int slot, Instance[] instances, int size, long[] errors){
+    	Classifier model = repository.get(slot);
+    	for(int j = 0; j < size; j++){
+			if (!model.correctlyClassifies(instances[j]))
+				AgreementKernel.set(errors, j);
+		}
+    }
+    
+    /**
+     * Test models on the buffer in the given order, stopping each model as soon
+     * as it can no longer be within margin or is certain to be, and stopping
+     * altogether at the first model within margin. Error masks are only filled
+     * for the first lengths[i] instances, and lengths[i] is 0 for models that were
+     * not tested. Returns the index of the first model within margin, or -1.
+     * This drift selects the same model as a full evaluation, but agreement
+     * between two models can only be counted on the prefix both were tested
+     * on, so later merges may not be the ones a full evaluation would make.
+     */
+    int evaluateUntilSimilar(ModelRepository repository, ArrayList<Integer> models, InstanceRingBuffer buffer,
+    		double margin, long[][] masks, int[] lengths){
+    	int size = buffer.size();
+    	if(size == 0) return -1;
+    	int allowed = maxErrors(size, margin);
+    	Instance[] instances = buffer.views();
+    	for(int i = 0; i < models.size(); i++){
+    		Classifier model = repository.get(models.get(i));
+    		int errors = 0;
+    		int j = 0;
+    		while(j < size && errors <= allowed && errors + (size - j) > allowed){
+    			if(!model.correctlyClassifies(instances[j])){
+    				AgreementKernel.set(masks[i], j);
+    				errors++;
+    			}
+    			j++;
+    		}
+    		lengths[i] = j;
+    		bufferTests += j;
+    		bufferTestsSkipped += size - j;
+    		if(errors <= allowed){
+    			bufferTestsSkipped += (long) (models.size() - i - 1) * size;
+    			return i;
+    		}
+    	}
+    	return -1;
+    }
+    
+    //the most errors a model can make on size instances and still be within margin, using the same test as the full evaluation
+    static int maxErrors(int size, double margin){
+    	int errors = (int) Math.floor((1 - margin) * size);
+    	while(errors >= 0 && (double)(size - errors)/(double)size < margin) errors--;
+    	while(errors < size && (double)(size - errors - 1)/(double)size >= margin) errors++;
+    	return errors;
+    }
+    
+    //disagreements between every pair of error masks, packed as in AgreementMatrix
+    int[] pairwiseDisagreements(long[][] errors, int numModels){
+    	int pairs = numModels * (numModels - 1) / 2;
+    	if(pairDisagreements == null || pairDisagreements.length < pairs)
+    		pairDisagreements = new int[Math.max(pairs, 2 * (pairDisagreements == null ? 0 : pairDisagreements.length))];
+    	AgreementKernel.pairwiseDisagreements(errors, numModels, pairDisagreements);
+    	return pairDisagreements;
+    }
+    
+    private ForkJoinPool getEvaluationPool(){
+    	if(evaluationThreadsOption.getValue() == 0)
+    		return ForkJoinPool.commonPool();
+    	if(evaluationPool == null)
+    		evaluationPool = new ForkJoinPool(evaluationThreadsOption.getValue());
+    	return evaluationPool;
+    }
+    
+    //splits the model range in half until a single model remains, each model is only ever read by one task
+    static class BufferEvaluationTask extends RecursiveAction {
+    	
+    	private static final long serialVersionUID = 1L;
+    	
+    	final ModelRepository repository;
+    	final ArrayList<Integer> models;
+    	final Instance[] instances;
+    	final int size;
+    	final long[][] results;
+    	final int from;
+    	final int to;
+    	
+    	BufferEvaluationTask(ModelRepository repository, ArrayList<Integer> models, Instance[] instances, int size, long[][] results, int from, int to){
+    		this.repository = repository;
+    		this.models = models;
+    		this.instances = instances;
+    		this.size = size;
+    		this.results = results;
+    		this.from = from;
+    		this.to = to;
+    	}
+    	
+		@Override
+		protected void compute() {
+			if(to - from == 1){
+				evaluateModelOnBuffer(repository, models.get(from), instances, size, results[from]);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new BufferEvaluationTask(repository, models, instances, size, results, from, mid),
+					new BufferEvaluationTask(repository, models, instances, size, results, mid, to));
+		}
+    }
+    
 	@Override
 	public boolean isRandomizable() {
 		// TODO Auto-generated method stub
@@ -72,10 +589,115 @@ public class AbstractCPF extends DriftDetectionMethodClassifierExt {
 		
 	}
 
+	/**
+	 * Train on a batch of instances in order, with the same result as calling
+	 * trainOnInstance on each of them. In-control stretches run in a tight loop
+	 * and the loop stops at each instance where a warning or drift is signalled,
+	 * which is then handled exactly as in per-instance training.
+	 */
+	public BatchSummary trainOnBatch(Instance[] batch){
+		return trainOnBatch(batch, 0, batch.length);
+	}
+
+	public BatchSummary trainOnBatch(Instances batch){
+		Instance[] instances = new Instance[batch.numInstances()];
+		for(int i = 0; i < instances.length; i++)
+			instances[i] = batch.instance(i);
+		return trainOnBatch(instances);
+	}
+
+	public BatchSummary trainOnBatch(Instance[] batch, int from, int to){
+		BatchSummary summary = new BatchSummary(this);
+		int i = from;
+		while(i < to){
+			int drifts = numDrifts;
+			int next = trainBatchImpl(batch, i, servingSegmentEnd(i, to));
+			if(next == i){
+				trainOnInstance(batch[i]);
+				next = i + 1;
+			}
+			//the fast path always returns straight after the instance that signalled a drift
+			if(numDrifts != drifts) summary.driftAt(next - 1 - from);
+			i = next;
+			refreshServing();
+		}
+		refreshServing();
+		return summary.finish(this, to - from);
+	}
+
+	//End of the next stretch handed to trainBatchImpl, so serving is refreshed at least every servingInterval instances
+	int servingSegmentEnd(int from, int to){
+		int interval = servingIntervalOption.getValue();
+		if(interval == 0 || serving == null) return to;
+		long due = servingPublishedAt + interval - numberInstances;
+		return (int) Math.min(to, from + Math.max(1, due));
+	}
+
+	//Train on batch[from..to) while the drift detector stays in control, returning the index of the next
+	//instance to train on. Must handle the instance that signals a warning or drift before returning after it,
+	//or return from untouched to fall back to trainOnInstance for one instance
+	int trainBatchImpl(Instance[] batch, int from, int to){
+		return from;
+	}
+
+	public int getWarningDetections(){
+		return this.warningDetected;
+	}
+
 	@Override
 	protected Measurement[] getModelMeasurementsImpl() {
-		// TODO Auto-generated method stub
-		return null;
+		ArrayList<Measurement> measurements = new ArrayList<Measurement>();
+		measurements.add(new Measurement("change detections", this.changeDetected));
+		measurements.add(new Measurement("warning detections", this.warningDetected));
+		measurements.add(new Measurement("drifts", getNumDrifts()));
+		measurements.add(new Measurement("model reuses", getModelReuses()));
+		measurements.add(new Measurement("model merges", getModelMerges()));
+		measurements.add(new Measurement("models faded", getModelFades()));
+		measurements.add(new Measurement("models evicted", this.modelsEvicted));
+		if(modelBudget != null) measurements.add(new Measurement("model bytes", modelBudget.getTotalBytes()));
+		measurements.add(new Measurement("new models", getNewClassifiersCreated()));
+		measurements.add(new Measurement("stored models", currentModels));
+		measurements.add(new Measurement("max models", getMaxModels()));
+		measurements.add(new Measurement("mean models", getMeanModels()));
+		measurements.add(new Measurement("average buffer size", getAverageBufferSize()));
+		measurements.add(new Measurement("buffer tests", this.bufferTests));
+		measurements.add(new Measurement("buffer tests skipped", this.bufferTestsSkipped));
+		measurements.add(new Measurement("buffer tests ahead of drift", this.bufferTestsAhead));
+		
+		//time spent per drift handling phase, in microseconds
+		for(LatencyHistogram phase : getPhaseLatencies()){
+			measurements.add(new Measurement(phase.getName() + " count", phase.getCount()));
+			measurements.add(new Measurement(phase.getName() + " mean (us)", phase.getMeanNanos() / 1000.0));
+			measurements.add(new Measurement(phase.getName() + " p50 (us)", phase.getPercentileNanos(0.5) / 1000.0));
+			measurements.add(new Measurement(phase.getName() + " p99 (us)", phase.getPercentileNanos(0.99) / 1000.0));
+			measurements.add(new Measurement(phase.getName() + " max (us)", phase.getMaxNanos() / 1000.0));
+			measurements.add(new Measurement(phase.getName() + " total (ms)", phase.getTotalNanos() / 1000000.0));
+		}
+		
+		ModelRepository repository = modelRepository();
+		if(repository != null){
+			measurements.add(new Measurement("repository hits", repository.getHits()));
+			measurements.add(new Measurement("repository misses", repository.getMisses()));
+			measurements.add(new Measurement("repository spills", repository.getSpills()));
+			measurements.add(new Measurement("hot models", repository.getHotModels()));
+			measurements.add(new Measurement("cold models", repository.getColdModels()));
+			measurements.add(new Measurement("cold model bytes", repository.getColdBytes()));
+			measurements.add(new Measurement("model slots", repository.size()));
+			measurements.add(new Measurement("slot compactions", this.slotCompactions));
+		}
+		FingerprintIndex fingerprints = fingerprintIndex();
+		if(fingerprints != null){
+			measurements.add(new Measurement("fingerprint mean candidates", fingerprints.getMeanCandidates()));
+			measurements.add(new Measurement("fingerprint recall samples", fingerprints.getRecallSamples()));
+			measurements.add(new Measurement("fingerprint recall", fingerprints.getRecall()));
+			measurements.add(new Measurement("fingerprint recent reuses", fingerprints.getRecentReuses()));
+			measurements.add(new Measurement("fingerprint probe refreshes", fingerprints.getRefreshes()));
+		}
+		measurements.add(new Measurement("dropped events", getDroppedEvents()));
+		measurements.add(new Measurement("serving snapshots", this.servingSnapshots));
+		measurements.add(new Measurement("vote cache hits", voteCache == null ? 0 : voteCache.getHits()));
+		measurements.add(new Measurement("vote cache misses", voteCache == null ? 0 : voteCache.getMisses()));
+		return measurements.toArray(new Measurement[measurements.size()]);
 	}
 
 	@Override
@@ -84,49 +706,286 @@ public class AbstractCPF extends DriftDetectionMethodClassifierExt {
 		
 	}
 
+	//sizes and usage of stored models, null when there is no memory budget
+	ModelBudget modelBudget;
+	
+	//instances trained since the memory budget was last checked
+	int instancesSinceBudgetCheck = 0;
+	
+	//replaces the policy chosen by evictionPolicy when set
+	EvictionPolicy customEvictionPolicy;
+	
+	static final EvictionPolicy[] EVICTION_POLICIES = {EvictionPolicy.LRU, EvictionPolicy.LFU, EvictionPolicy.SIZE, EvictionPolicy.FADE};
+	
+	public void setEvictionPolicy(EvictionPolicy policy){
+		this.customEvictionPolicy = policy;
+		if(modelBudget != null) modelBudget.setPolicy(policy != null ? policy : EVICTION_POLICIES[evictionPolicyOption.getChosenIndex()]);
+	}
+	
+	void resetMemoryBudget(){
+		this.modelBudget = newMemoryBudget();
+		this.instancesSinceBudgetCheck = 0;
+		//spilled models keep the size they had on the heap, so the budget never loads them back to measure them
+		ModelRepository repository = modelRepository();
+		if(repository != null) repository.setMeasureSpills(modelBudget != null);
+	}
+	
+	//Count a trained instance, checking the budget every budgetCheckFreq instances as the current model
+	//grows while it is trained, not only at drifts
+	void countForBudget(){
+		if(modelBudget == null || budgetCheckFreqOption.getValue() == 0) return;
+		if(++instancesSinceBudgetCheck < budgetCheckFreqOption.getValue()) return;
+		instancesSinceBudgetCheck = 0;
+		ModelRepository repository = modelRepository();
+		if(repository != null && activeSlot() >= 0) fitMemoryBudget(repository, activeSlot());
+	}
+	
+	//a budget as configured by maxMemory and evictionPolicy, null when there is no budget
+	ModelBudget newMemoryBudget(){
+		EvictionPolicy policy = customEvictionPolicy != null ? customEvictionPolicy : EVICTION_POLICIES[evictionPolicyOption.getChosenIndex()];
+		long maxBytes = (long) (maxMemoryOption.getValue() * 1024 * 1024);
+		return maxBytes > 0 ? new ModelBudget(maxBytes, policy) : null;
+	}
+	
+	//Evict stored models at the end of drift handling until they fit in maxMemory, never the current model
+	void enforceMemoryBudget(ModelRepository repository, int current){
+		if(modelBudget == null) return;
+		modelBudget.recordUse(current, numDrifts);
+		modelBudget.setActive(current, repository);
+		fitMemoryBudget(repository, current);
+	}
+	
+	//Only the models that were or are now current are measured, the sizes of the others have not changed,
+	//except for shared copies which are charged once the model they share is no longer stored
+	void fitMemoryBudget(ModelRepository repository, int current){
+		ArrayList<Integer> models = repository.liveModels();
+		for(int slot : models)
+			if(slot == current || !modelBudget.isMeasured(slot) || repository.isSharedCopy(slot))
+				modelBudget.measure(slot, repository);
+		while(modelBudget.isOverBudget()){
+			int victim = -1;
+			double worst = 0;
+			for(int slot : models){
+				if(slot == current || !repository.contains(slot)) continue;
+				double score = modelBudget.getPolicy().evictionScore(slot, modelBudget, fadeScore(slot));
+				if(victim < 0 || score > worst){
+					victim = slot;
+					worst = score;
+				}
+			}
+			if(victim < 0) break;
+			long bytes = modelBudget.getBytes(victim);
+			evictModel(victim);
+			modelsEvicted++;
+			emit(CPFEvent.Type.EVICTION, victim, -1, 0, bytes, 0);
+		}
+	}
+	
+	//remove a stored model to stay within the memory budget
+	void evictModel(int slot){
+	}
+	
+	//Renumber the stored models once most slots have been freed by merging, fading or eviction,
+	//so every structure indexed by slot stays proportional to the live models
+	void compactModels(){
+		ModelRepository repository = modelRepository();
+		if(repository == null || !repository.shouldCompact()) return;
+		int[] remap = repository.compact();
+		remapModels(remap, repository.size());
+		slotCompactions++;
+	}
+	
+	//move every structure indexed by slot to the slots given by remap, overridden for each learner's own structures
+	void remapModels(int[] remap, int numSlots){
+		if(modelBudget != null) modelBudget.remap(remap, numSlots);
+	}
+
+	
+	//the fade score of a stored model, for the fadeScore eviction policy
+	int fadeScore(int slot){
+		return 0;
+	}
+	
+	//a new, prepared copy of the configured base learner
+	Classifier newBaseLearner(){
+		Classifier model = ((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy();
+		model.prepareForUse();
+		return model;
+	}
+	
+	//a new copy of the configured drift detector
+	ChangeDetector newDriftDetector(){
+		return ((ChangeDetector) getPreparedClassOption(this.driftDetectionMethodOption)).copy();
+	}
+	
+	//the fingerprint index used to shortlist models at drift, null when there is none
+	FingerprintIndex fingerprintIndex(){
+		return null;
+	}
+	
+	//the stored models of this learner, null when it keeps none
+	ModelRepository modelRepository(){
+		return null;
+	}
+	
+	/*
+	 * Format of the checkpoint state, bumped with every change to what is serialized.
+	 * 1: first format
+	 * 2: fade scores kept as a FadeSchedule
+	 * 3: changed agreement pairs are tracked, the warning buffer counts its additions, ECPF's contending model is not written
+	 * 4: CPF's probeRefresh option and the probe refresh counters of its FingerprintIndex
+	 * 5: the memory budget is set in MiB by maxMemory and checked every budgetCheckFreq instances, spilled model sizes are kept
+	 */
+	public static final int CHECKPOINT_VERSION = 5;
+	
+	//oldest version restore() migrates, older checkpoints are rejected
+	static final int OLDEST_CHECKPOINT_VERSION = 2;
+	
+	private static final String CURRENT_CHECKPOINT = "CURRENT";
+	
+	/**
+	 * Write a snapshot of the full learner state to a checkpoint directory. Each
+	 * stored model lives in its own file and is only rewritten when it changed
+	 * since the previous checkpoint into the same directory. The remaining state
+	 * (drift detector, buffer, comparison and accuracy statistics, fade scores and
+	 * counters) is small and is written in full to a new state file. ECPF's
+	 * contending model is left out, a new one is built at the next drift. Must
+	 * be called from the thread that trains the learner.
+	 */
+	public synchronized void checkpoint(File directory) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create checkpoint directory " + directory);
+		
+		String previous = readCurrentCheckpoint(directory);
+		long generation = previous == null ? 1 : Long.parseLong(previous.substring("state-".length(), previous.length() - ".ser".length())) + 1;
+		String stateName = "state-" + generation + ".ser";
+		
+		ModelRepository repository = modelRepository();
+		if(repository != null) repository.writeCheckpointModels(directory, generation);
+		
+		File tmp = new File(directory, stateName + ".tmp");
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		if(repository != null) repository.externalize = true;
+		try {
+			out.writeInt(CHECKPOINT_VERSION);
+			out.writeLong(generation);
+			out.writeObject(this);
+		} finally {
+			if(repository != null) repository.externalize = false;
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(directory, stateName).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		File currentTmp = new File(directory, CURRENT_CHECKPOINT + ".tmp");
+		Files.write(currentTmp.toPath(), stateName.getBytes(StandardCharsets.UTF_8));
+		Files.move(currentTmp.toPath(), new File(directory, CURRENT_CHECKPOINT).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		//older snapshots are superseded once CURRENT points at the new one
+		if(previous != null) new File(directory, previous).delete();
+		if(repository != null) repository.deleteUnreferencedModels(directory);
+	}
+	
+	/**
+	 * Restore the learner from the latest checkpoint in a directory. Stored
+	 * models stay in their files until they are first used, so restoring is fast
+	 * however many models the checkpoint holds. The directory must be kept while
+	 * the restored learner is in use.
+	 */
+	public static AbstractCPF restore(File directory) throws IOException, ClassNotFoundException {
+		String stateName = readCurrentCheckpoint(directory);
+		if(stateName == null)
+			throw new IOException("No checkpoint found in " + directory);
+		
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(new File(directory, stateName))));
+		try {
+			int version = in.readInt();
+			if(version < OLDEST_CHECKPOINT_VERSION || version > CHECKPOINT_VERSION)
+				throw new IOException("Checkpoint version " + version + " in " + directory + " cannot be restored, versions "
+						+ OLDEST_CHECKPOINT_VERSION + " to " + CHECKPOINT_VERSION + " are supported");
+			in.readLong();
+			AbstractCPF learner = (AbstractCPF) in.readObject();
+			if(version < CHECKPOINT_VERSION){
+				learner.restoreMissingOptions();
+				learner.migrateCheckpoint(version);
+			}
+			if(learner.modelRepository() != null)
+				learner.modelRepository().attach(directory);
+			return learner;
+		} finally {
+			in.close();
+		}
+	}
+	
+	//bring state restored from an older checkpoint version up to date, fields added since then are still zero or null
+	void migrateCheckpoint(int version){
+	}
+	
+	//Options added since an older checkpoint was written are null once it is restored, they get their default values.
+	//They are still missing from getOptions, which lists the options the learner was created with
+	void restoreMissingOptions(){
+		try {
+			AbstractCPF defaults = getClass().getDeclaredConstructor().newInstance();
+			for(Class<?> type = getClass(); type != null; type = type.getSuperclass()){
+				for(Field field : type.getDeclaredFields()){
+					if(Modifier.isStatic(field.getModifiers()) || !Option.class.isAssignableFrom(field.getType())) continue;
+					field.setAccessible(true);
+					if(field.get(this) == null) field.set(this, field.get(defaults));
+				}
+			}
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Unable to give restored options their defaults", e);
+		}
+	}
+	
+	private static String readCurrentCheckpoint(File directory) throws IOException {
+		File current = new File(directory, CURRENT_CHECKPOINT);
+		if(!current.isFile()) return null;
+		return new String(Files.readAllBytes(current.toPath()), StandardCharsets.UTF_8).trim();
+	}
+	
 	public void clearBuffer() {
 		// TODO Auto-generated method stub
 		
 	}
 
 	public int getMaxModels() {
-		// TODO Auto-generated method stub
-		return 0;
+		return maxModels;
 	}
 
 	public int getNumDrifts() {
-		// TODO Auto-generated method stub
-		return 0;
+		return numDrifts;
 	}
 
 	public int getModelReuses() {
-		// TODO Auto-generated method stub
-		return 0;
+		return modelReuses;
 	}
 
 	public int getModelMerges() {
-		// TODO Auto-generated method stub
-		return 0;
+		return modelMerges;
 	}
 
 	public int getNewClassifiersCreated() {
-		// TODO Auto-generated method stub
-		return 0;
+		return newClassifiersCreated;
 	}
 
+	//number of stored models averaged over every instance trained on
 	public double getMeanModels() {
-		// TODO Auto-generated method stub
-		return 0;
+		return numberInstances == 0 ? 0 : (double)modelCountSum/(double)numberInstances;
 	}
 
 	public int getModelFades() {
-		// TODO Auto-generated method stub
-		return 0;
+		return modelsFaded;
 	}
 
 	public double getAverageBufferSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return numDrifts == 0 ? 0 : (double)totalBufferInstances/(double)numDrifts;
+	}
+	
+	public LatencyHistogram[] getPhaseLatencies() {
+		return new LatencyHistogram[]{bufferEvaluationLatency, pairwiseComparisonLatency, mergeLatency,
+				fadeLatency, newModelLatency, bufferStallLatency};
 	}
 
 }
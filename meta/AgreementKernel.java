@@ -0,0 +1,129 @@
+/*
+ * AgreementKernel.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+/**
+ * Allocation free operations on error masks, where bit j of a model's mask is
+ * set when the model misclassifies buffer instance j. Two models disagree on an
+ * instance exactly when one of them is wrong, so disagreements are
+ * popcount(a XOR b) over the mask words.
+ */
+public final class AgreementKernel {
+
+	//bits 1, 3, 5, ... of every word, the held out instances of CPF's even-train/odd-test scheme
+	public static final long ODD_POSITIONS = 0xAAAAAAAAAAAAAAAAL;
+
+	private AgreementKernel(){
+	}
+
+	public static long[] newMask(int bits){
+		return new long[words(bits)];
+	}
+
+	public static int words(int bits){
+		return (bits + 63) >>> 6;
+	}
+
+	public static void set(long[] mask, int bit){
+		mask[bit >>> 6] |= 1L << bit;
+	}
+
+	public static void clear(long[] mask, int bit){
+		mask[bit >>> 6] &= ~(1L << bit);
+	}
+
+	public static boolean get(long[] mask, int bit){
+		return (mask[bit >>> 6] & (1L << bit)) != 0;
+	}
+
+	public static int cardinality(long[] mask){
+		int count = 0;
+		for(int w = 0; w < mask.length; w++)
+			count += Long.bitCount(mask[w]);
+		return count;
+	}
+
+	public static int disagreements(long[] a, long[] b){
+		int count = 0;
+		for(int w = 0; w < a.length; w++)
+			count += Long.bitCount(a[w] ^ b[w]);
+		return count;
+	}
+
+	//disagreements on the positions set in positions only
+	public static int maskedDisagreements(long[] a, long[] b, long[] positions){
+		int count = 0;
+		for(int w = 0; w < a.length; w++)
+			count += Long.bitCount((a[w] ^ b[w]) & positions[w]);
+		return count;
+	}
+
+	//disagreements on odd buffer positions only
+	public static int oddDisagreements(long[] a, long[] b){
+		int count = 0;
+		for(int w = 0; w < a.length; w++)
+			count += Long.bitCount((a[w] ^ b[w]) & ODD_POSITIONS);
+		return count;
+	}
+
+	//disagreements on the first length positions, for masks of models tested on part of the buffer
+	public static int disagreements(long[] a, long[] b, int length){
+		return prefixCount(a, b, length, -1L);
+	}
+
+	//disagreements on odd positions among the first length
+	public static int oddDisagreements(long[] a, long[] b, int length){
+		return prefixCount(a, b, length, ODD_POSITIONS);
+	}
+
+	private static int prefixCount(long[] a, long[] b, int length, long positions){
+		int count = 0;
+		int full = length >>> 6;
+		for(int w = 0; w < full; w++)
+			count += Long.bitCount((a[w] ^ b[w]) & positions);
+		int rest = length & 63;
+		if(rest != 0)
+			count += Long.bitCount((a[full] ^ b[full]) & positions & ((1L << rest) - 1));
+		return count;
+	}
+
+	/**
+	 * Counts disagreements for every pair of the first numModels masks in a
+	 * single pass over the words. The count for pair (i, j), i < j, is written
+	 * to out[j * (j - 1) / 2 + i], the same packing as AgreementMatrix.
+	 *
+	 * @param out scratch array of at least numModels * (numModels - 1) / 2 entries
+	 */
+	public static void pairwiseDisagreements(long[][] masks, int numModels, int[] out){
+		int pairs = numModels * (numModels - 1) / 2;
+		for(int p = 0; p < pairs; p++)
+			out[p] = 0;
+		if(numModels < 2) return;
+		int words = masks[0].length;
+		for(int w = 0; w < words; w++){
+			int p = 0;
+			for(int j = 1; j < numModels; j++){
+				long word = masks[j][w];
+				for(int i = 0; i < j; i++)
+					out[p++] += Long.bitCount(masks[i][w] ^ word);
+			}
+		}
+	}
+}
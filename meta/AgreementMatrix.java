@@ -0,0 +1,200 @@
+/*
+ * AgreementMatrix.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Pairwise seen/agreed counters between model slots, stored as a packed
+ * strictly upper-triangular matrix of primitive longs.
+ *
+ * Pair (i, j) with i < j lives at j * (j - 1) / 2 + i, so the counters of a
+ * new slot are appended to the end of the arrays and existing pairs never move
+ * when the matrix grows.
+ *
+ * Pairs whose counters were added to or set are remembered until they are
+ * taken, so merge checks only revisit pairs whose agreement has changed.
+ */
+public class AgreementMatrix implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	//the most slots whose pairs still fit in an int-indexed array
+	static final int MAX_SLOTS = 65536;
+
+	long[] seen = new long[0];
+	long[] agreed = new long[0];
+	int slots = 0;
+
+	//changed pairs as newer slot << 32 | older slot, with a bit per pair index so each is listed once
+	long[] changed = new long[16];
+	int changedCount = 0;
+	long[] changedBits = new long[0];
+
+	//make room for pairs between the first numSlots model slots
+	public void ensureSlots(int numSlots){
+		if(numSlots <= slots) return;
+		if(numSlots > MAX_SLOTS)
+			throw new IllegalStateException("Agreement between " + numSlots + " model slots cannot be stored, the limit is " + MAX_SLOTS);
+		int needed = pairs(numSlots);
+		if(needed > seen.length){
+			int capacity = Math.max(needed, seen.length + (seen.length >> 1));
+			seen = Arrays.copyOf(seen, capacity);
+			agreed = Arrays.copyOf(agreed, capacity);
+		}
+		slots = numSlots;
+		if(changedBits.length * 64 < needed)
+			changedBits = Arrays.copyOf(changedBits, Math.max((needed + 63) / 64, 2 * changedBits.length));
+	}
+
+	public int slots(){
+		return slots;
+	}
+
+	public long seen(int modelA, int modelB){
+		return seen[index(modelA, modelB)];
+	}
+
+	public long agreed(int modelA, int modelB){
+		return agreed[index(modelA, modelB)];
+	}
+
+	//proportion of seen instances where the two models agreed, NaN if they have not been compared
+	public double agreement(int modelA, int modelB){
+		int idx = index(modelA, modelB);
+		return (double)agreed[idx]/(double)seen[idx];
+	}
+
+	public void add(int modelA, int modelB, long seenCount, long agreedCount){
+		int idx = index(modelA, modelB);
+		seen[idx] += seenCount;
+		agreed[idx] += agreedCount;
+		markChanged(idx, modelA, modelB);
+	}
+
+	public void set(int modelA, int modelB, long seenCount, long agreedCount){
+		int idx = index(modelA, modelB);
+		seen[idx] = seenCount;
+		agreed[idx] = agreedCount;
+		markChanged(idx, modelA, modelB);
+	}
+
+	//the pairs changed since the last call, as newer slot << 32 | older slot, which are then no longer changed
+	public long[] takeChanged(){
+		long[] taken = Arrays.copyOf(changed, changedCount);
+		for(long pair : taken)
+			unmark(pairs((int) (pair >>> 32)) + (int) pair);
+		changedCount = 0;
+		return taken;
+	}
+
+	private void markChanged(int idx, int modelA, int modelB){
+		if((changedBits[idx >>> 6] & (1L << idx)) != 0) return;
+		changedBits[idx >>> 6] |= 1L << idx;
+		if(changedCount == changed.length) changed = Arrays.copyOf(changed, 2 * changed.length);
+		changed[changedCount++] = ((long) Math.max(modelA, modelB) << 32) | Math.min(modelA, modelB);
+	}
+
+	private void unmark(int idx){
+		changedBits[idx >>> 6] &= ~(1L << idx);
+	}
+
+	//forget every comparison involving a removed model
+	public void clearRow(int model){
+		for(int i = 0; i < model; i++){
+			int idx = pairs(model) + i;
+			seen[idx] = 0;
+			agreed[idx] = 0;
+		}
+		for(int j = model + 1; j < slots; j++){
+			int idx = pairs(j) + model;
+			seen[idx] = 0;
+			agreed[idx] = 0;
+		}
+		//pairs of the removed model must not be returned by takeChanged, as its slot may be reused
+		int kept = 0;
+		for(int k = 0; k < changedCount; k++){
+			long pair = changed[k];
+			int j = (int) (pair >>> 32), i = (int) pair;
+			if(i == model || j == model) unmark(pairs(j) + i);
+			else changed[kept++] = pair;
+		}
+		changedCount = kept;
+	}
+
+	//move the counters to the slots given by remap after the models were compacted, dropped slots are forgotten
+	public void remap(int[] remap, int numSlots){
+		long[] movedSeen = new long[pairs(numSlots)];
+		long[] movedAgreed = new long[pairs(numSlots)];
+		for(int j = 1; j < Math.min(slots, remap.length); j++){
+			if(remap[j] < 0) continue;
+			for(int i = 0; i < j; i++){
+				if(remap[i] < 0) continue;
+				int a = remap[i], b = remap[j];
+				int to = a < b ? pairs(b) + a : pairs(a) + b;
+				movedSeen[to] = seen[pairs(j) + i];
+				movedAgreed[to] = agreed[pairs(j) + i];
+			}
+		}
+		seen = movedSeen;
+		agreed = movedAgreed;
+		slots = numSlots;
+
+		long[] pending = Arrays.copyOf(changed, changedCount);
+		changedCount = 0;
+		changedBits = new long[(pairs(numSlots) + 63) / 64];
+		for(long pair : pending){
+			int j = (int) (pair >>> 32), i = (int) pair;
+			if(j >= remap.length || remap[i] < 0 || remap[j] < 0) continue;
+			int a = remap[i], b = remap[j];
+			markChanged(a < b ? pairs(b) + a : pairs(a) + b, a, b);
+		}
+	}
+
+	public void clear(){
+		seen = new long[0];
+		agreed = new long[0];
+		slots = 0;
+		changedCount = 0;
+		changedBits = new long[0];
+	}
+
+	//treat every compared pair as changed, for matrices restored from before changes were tracked
+	public void markAllCompared(){
+		changed = new long[16];
+		changedCount = 0;
+		changedBits = new long[(pairs(slots) + 63) / 64];
+		for(int j = 1; j < slots; j++)
+			for(int i = 0; i < j; i++)
+				if(seen[pairs(j) + i] > 0) markChanged(pairs(j) + i, i, j);
+	}
+
+	//counted in long as numSlots * (numSlots - 1) overflows an int well before MAX_SLOTS
+	private static int pairs(int numSlots){
+		return (int) ((long) numSlots * (numSlots - 1) / 2);
+	}
+
+	private int index(int modelA, int modelB){
+		if(modelA == modelB || modelA >= slots || modelB >= slots)
+			throw new IndexOutOfBoundsException("No comparison between models " + modelA + " and " + modelB);
+		return modelA < modelB ? pairs(modelB) + modelA : pairs(modelA) + modelB;
+	}
+}
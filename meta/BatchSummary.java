@@ -0,0 +1,112 @@
+/*
+ * BatchSummary.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.util.Arrays;
+
+/**
+ * What happened while a CPF or ECPF learner trained on one batch, taken as
+ * the change in its counters over the batch. Drift offsets are positions in
+ * the batch of the instances at which drift was detected.
+ */
+public class BatchSummary {
+
+	int instances = 0;
+	int warnings;
+	int drifts;
+	int reuses;
+	int newModels;
+	int merges;
+	int fades;
+	int[] driftOffsets = new int[0];
+	int numDriftOffsets = 0;
+	long elapsedNanos;
+
+	BatchSummary(AbstractCPF learner){
+		this.warnings = -learner.getWarningDetections();
+		this.drifts = -learner.numDrifts;
+		this.reuses = -learner.modelReuses;
+		this.newModels = -learner.newClassifiersCreated;
+		this.merges = -learner.modelMerges;
+		this.fades = -learner.modelsFaded;
+		this.elapsedNanos = -System.nanoTime();
+	}
+
+	void driftAt(int offset){
+		if(numDriftOffsets == driftOffsets.length)
+			driftOffsets = Arrays.copyOf(driftOffsets, Math.max(4, 2 * driftOffsets.length));
+		driftOffsets[numDriftOffsets++] = offset;
+	}
+
+	BatchSummary finish(AbstractCPF learner, int instances){
+		this.instances = instances;
+		this.warnings += learner.getWarningDetections();
+		this.drifts += learner.numDrifts;
+		this.reuses += learner.modelReuses;
+		this.newModels += learner.newClassifiersCreated;
+		this.merges += learner.modelMerges;
+		this.fades += learner.modelsFaded;
+		this.elapsedNanos += System.nanoTime();
+		this.driftOffsets = Arrays.copyOf(driftOffsets, numDriftOffsets);
+		return this;
+	}
+
+	public int getInstances(){
+		return instances;
+	}
+
+	public int getWarnings(){
+		return warnings;
+	}
+
+	public int getDrifts(){
+		return drifts;
+	}
+
+	public int[] getDriftOffsets(){
+		return driftOffsets;
+	}
+
+	public int getModelReuses(){
+		return reuses;
+	}
+
+	public int getNewModels(){
+		return newModels;
+	}
+
+	public int getModelMerges(){
+		return merges;
+	}
+
+	public int getModelFades(){
+		return fades;
+	}
+
+	public long getElapsedNanos(){
+		return elapsedNanos;
+	}
+
+	@Override
+	public String toString(){
+		return instances + " instances, " + warnings + " warnings, " + drifts + " drifts at " + Arrays.toString(driftOffsets)
+				+ ", " + reuses + " reuses, " + newModels + " new models, " + merges + " merges, " + fades + " fades";
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * BinaryInstanceReader.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+/**
+ * Memory-mapped reader of files written by BinaryInstanceWriter. The rows are
+ * mapped a segment at a time, each a whole number of rows below 2GB, so files
+ * of any size are read without a single row straddling two mappings.
+ *
+ * next returns a new instance each call. nextBatch and replay hand out views
+ * that are refilled in place, as InstanceRingBuffer does, so replay allocates
+ * nothing per instance. A view is overwritten by the next call to nextBatch,
+ * so it must not be kept past it, which holds for CPF and ECPF but not for
+ * base learners that store the instances they are trained on. The vote cache
+ * compares an instance's values as well as its identity, so a refilled view
+ * is never given the votes of its old values.
+ */
+public class BinaryInstanceReader implements Closeable {
+
+	static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+	final FileChannel channel;
+	final InstancesHeader header;
+	final int numAttributes;
+	final int rowBytes;
+	final long numInstances;
+	final long dataOffset;
+	final long rowsPerSegment;
+
+	//the mapped segment and the row it starts at
+	DoubleBuffer segment;
+	long segmentStart = -1;
+	long next = 0;
+
+	final double[] row;
+	Instance[] views = new Instance[0];
+
+	public BinaryInstanceReader(File file) throws IOException {
+		this(file, MAX_SEGMENT_BYTES);
+	}
+
+	BinaryInstanceReader(File file, long maxSegmentBytes) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer start = read(0, BinaryInstanceWriter.SCHEMA_OFFSET);
+			if(start.getInt() != BinaryInstanceWriter.MAGIC)
+				throw new IOException(file + " is not a binary instance file");
+			int version = start.getInt();
+			if(version != BinaryInstanceWriter.VERSION)
+				throw new IOException("Unsupported binary instance file version " + version);
+			this.numAttributes = start.getInt();
+			start.getInt();
+			this.numInstances = start.getLong();
+			this.dataOffset = start.getLong();
+			byte[] schema = new byte[start.getInt()];
+			read(BinaryInstanceWriter.SCHEMA_OFFSET, schema.length).get(schema);
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(schema));
+			try {
+				this.header = (InstancesHeader) in.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Failed to read the schema of " + file, e);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.rowBytes = BinaryInstanceWriter.rowBytes(numAttributes);
+		this.rowsPerSegment = Math.max(1, maxSegmentBytes / rowBytes);
+		this.row = new double[numAttributes + 1];
+	}
+
+	public InstancesHeader getHeader(){
+		return header;
+	}
+
+	public long numInstances(){
+		return numInstances;
+	}
+
+	public boolean hasNext(){
+		return next < numInstances;
+	}
+
+	//move to the given instance, 0 to replay from the start
+	public void seek(long instance){
+		if(instance < 0 || instance > numInstances)
+			throw new IndexOutOfBoundsException("Instance " + instance + " of " + numInstances);
+		next = instance;
+	}
+
+	//the next instance, a new one the caller may keep
+	public Instance next(){
+		Instance inst = newInstance();
+		fill(inst);
+		return inst;
+	}
+
+	/**
+	 * Fill batch with views of the next instances, up to its length, and
+	 * return the number filled. The views are refilled by the next call, so
+	 * copy any instance that has to outlive it.
+	 */
+	public int nextBatch(Instance[] batch){
+		ensureViews(batch.length);
+		int n = 0;
+		while(n < batch.length && hasNext()){
+			fill(views[n]);
+			batch[n] = views[n];
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Train a learner on every remaining instance, batchSize at a time through
+	 * trainOnBatch. Returns the number of instances trained on.
+	 */
+	public long replay(AbstractCPF learner, int batchSize){
+		Instance[] batch = new Instance[Math.max(1, batchSize)];
+		long count = 0;
+		int n;
+		while((n = nextBatch(batch)) > 0){
+			learner.trainOnBatch(batch, 0, n);
+			//the pipelined worker may still hold views of this batch
+			if(learner instanceof ECPF) ((ECPF) learner).drainShadow();
+			count += n;
+		}
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		segment = null;
+		channel.close();
+	}
+
+	private void fill(Instance view){
+		if(!hasNext())
+			throw new IndexOutOfBoundsException("No instances left in binary instance file");
+		if(segmentStart < 0 || next < segmentStart || next >= segmentStart + rowsPerSegment)
+			map(next - next % rowsPerSegment);
+		segment.position((int) ((next - segmentStart) * (numAttributes + 1)));
+		segment.get(row);
+		for(int a = 0; a < numAttributes; a++)
+			view.setValue(a, row[a]);
+		view.setWeight(row[numAttributes]);
+		next++;
+	}
+
+	private void map(long firstRow){
+		long rows = Math.min(rowsPerSegment, numInstances - firstRow);
+		try {
+			segment = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + firstRow * rowBytes, rows * rowBytes)
+					.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to map binary instances", e);
+		}
+		segmentStart = firstRow;
+	}
+
+	private void ensureViews(int count){
+		if(views.length >= count) return;
+		Instance[] grown = new Instance[count];
+		System.arraycopy(views, 0, grown, 0, views.length);
+		for(int i = views.length; i < count; i++)
+			grown[i] = newInstance();
+		views = grown;
+	}
+
+	private Instance newInstance(){
+		Instance inst = new DenseInstance(1.0, new double[numAttributes]);
+		inst.setDataset(header);
+		return inst;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Binary instance file ends inside its header");
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
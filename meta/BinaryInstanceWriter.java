@@ -0,0 +1,165 @@
+/*
+ * BinaryInstanceWriter.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.streams.ArffFileStream;
+import moa.streams.InstanceStream;
+
+/**
+ * Writes instances in the binary format read by BinaryInstanceReader, for
+ * replaying long histories without parsing text. The file is little-endian:
+ *
+ *   int magic, int version, int numAttributes, int classIndex,
+ *   long numInstances, long dataOffset, int schemaLength,
+ *   the serialized InstancesHeader, padding to a multiple of 8,
+ *   then one row per instance of numAttributes doubles followed by the weight.
+ *
+ * Missing values are stored as NaN, as MOA holds them. numInstances is
+ * written by close(), so a file that was not closed reads as empty.
+ */
+public class BinaryInstanceWriter implements Closeable {
+
+	static final int MAGIC = 0x43504642;
+	static final int VERSION = 1;
+	static final int NUM_INSTANCES_OFFSET = 16;
+	static final int SCHEMA_OFFSET = 36;
+	static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+	final FileChannel channel;
+	final int numAttributes;
+	final ByteBuffer buffer;
+	long numInstances = 0;
+
+	public BinaryInstanceWriter(File file, InstancesHeader header) throws IOException {
+		this.numAttributes = header.numAttributes();
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		int rowBytes = rowBytes(numAttributes);
+		this.buffer = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER_BYTES, rowBytes)).order(ByteOrder.LITTLE_ENDIAN);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(header);
+		out.close();
+		byte[] schema = bytes.toByteArray();
+		long dataOffset = align(SCHEMA_OFFSET + schema.length);
+
+		ByteBuffer start = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+		start.putInt(MAGIC);
+		start.putInt(VERSION);
+		start.putInt(numAttributes);
+		start.putInt(header.classIndex());
+		start.putLong(0);
+		start.putLong(dataOffset);
+		start.putInt(schema.length);
+		start.put(schema);
+		start.position(0);
+		writeFully(start);
+	}
+
+	public void write(Instance inst){
+		if(buffer.remaining() < rowBytes(numAttributes)) flush();
+		for(int a = 0; a < numAttributes; a++)
+			buffer.putDouble(inst.value(a));
+		buffer.putDouble(inst.weight());
+		numInstances++;
+	}
+
+	public long getNumInstances(){
+		return numInstances;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+			ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			count.putLong(numInstances);
+			count.flip();
+			while(count.hasRemaining())
+				channel.write(count, NUM_INSTANCES_OFFSET + count.position());
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Write every remaining instance of a stream to a binary file, returning
+	 * the number written.
+	 */
+	public static long convert(InstanceStream stream, File file) throws IOException {
+		BinaryInstanceWriter writer = new BinaryInstanceWriter(file, stream.getHeader());
+		try {
+			while(stream.hasMoreInstances())
+				writer.write(stream.nextInstance().getData());
+		} finally {
+			writer.close();
+		}
+		return writer.getNumInstances();
+	}
+
+	//convert an ARFF file: input.arff output.bin [classIndex, 1-based, -1 for the last attribute]
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2){
+			System.err.println("Usage: BinaryInstanceWriter input.arff output.bin [classIndex]");
+			System.exit(2);
+		}
+		ArffFileStream stream = new ArffFileStream(args[0], args.length > 2 ? Integer.parseInt(args[2]) : -1);
+		stream.prepareForUse();
+		long count = convert(stream, new File(args[1]));
+		System.out.println("Wrote " + count + " instances to " + args[1]);
+	}
+
+	static int rowBytes(int numAttributes){
+		return 8 * (numAttributes + 1);
+	}
+
+	static long align(long offset){
+		return (offset + 7) & ~7L;
+	}
+
+	private void flush(){
+		buffer.flip();
+		try {
+			writeFully(buffer);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to write binary instances", e);
+		}
+		buffer.clear();
+	}
+
+	private void writeFully(ByteBuffer data) throws IOException {
+		while(data.hasRemaining())
+			channel.write(data);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * BufferScorer.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+
+/**
+ * Error bits of stored models on the warning buffer, filled in as each
+ * instance is buffered instead of all at once at drift. Only inactive models
+ * on the heap are scored: they are not trained, so a bit never goes stale
+ * while the buffer is held, and cold models are not loaded for it.
+ *
+ * Bits are kept by physical ring slot, so an overwritten instance just
+ * replaces its slot's bit, and they are put in buffer order when read. A
+ * model's bits are complete when it has been scored on every instance added
+ * since the buffer was last cleared, and the same model is still in its slot.
+ */
+public class BufferScorer {
+
+	long generation = -1;
+	long added = 0;
+	int capacity = 0;
+	//counts score calls across buffers, so a slot's stamps can never match those of an earlier buffer
+	long clock = 0;
+	long startedClock = 0;
+
+	//per repository slot: error bits by ring slot, the model they belong to, and the clock when it started and was last scored
+	long[][] errors = new long[0][];
+	Classifier[] models = new Classifier[0];
+	long[] started = new long[0];
+	long[] scored = new long[0];
+
+	/**
+	 * Score the stored models, other than the active one, on an instance just
+	 * added to the buffer at the given ring slot. Returns the number of models
+	 * tested.
+	 */
+	public int score(InstanceRingBuffer buffer, int position, Instance inst, ModelRepository repository, int active){
+		clock++;
+		//an instance added without being scored leaves every model incomplete until the buffer is cleared
+		boolean restart = buffer.generation != generation || buffer.capacity() != capacity || buffer.added != added + 1;
+		if(restart){
+			generation = buffer.generation;
+			capacity = buffer.capacity();
+			startedClock = buffer.added == 1 ? clock : -1;
+		}
+		added = buffer.added;
+		int tests = 0;
+		for(int i = 0; i < repository.liveCount(); i++){
+			int slot = repository.liveModel(i);
+			if(slot == active) continue;
+			Classifier model = repository.peekHot(slot);
+			if(model == null) continue;
+			ensure(slot);
+			if(clock == startedClock){
+				models[slot] = model;
+				started[slot] = clock;
+				if(errors[slot] == null || errors[slot].length != AgreementKernel.words(capacity))
+					errors[slot] = AgreementKernel.newMask(capacity);
+			} else if(started[slot] != startedClock || scored[slot] != clock - 1 || models[slot] != model){
+				continue;
+			}
+			long bit = 1L << position;
+			if(model.correctlyClassifies(inst)) errors[slot][position >>> 6] &= ~bit;
+			else errors[slot][position >>> 6] |= bit;
+			scored[slot] = clock;
+			tests++;
+		}
+		return tests;
+	}
+
+	public boolean isComplete(int slot, Classifier model, InstanceRingBuffer buffer){
+		return buffer.generation == generation && buffer.added == added && buffer.capacity() == capacity
+				&& startedClock > 0 && slot < scored.length && started[slot] == startedClock
+				&& scored[slot] == clock && models[slot] == model;
+	}
+
+	//the error mask of a complete model in buffer order, bit i for buffered instance i
+	public void copyErrors(int slot, InstanceRingBuffer buffer, long[] mask){
+		long[] bits = errors[slot];
+		for(int i = 0; i < buffer.size(); i++){
+			int position = buffer.physical(i);
+			if((bits[position >>> 6] & (1L << position)) != 0) AgreementKernel.set(mask, i);
+		}
+	}
+
+	private void ensure(int slot){
+		if(slot < scored.length) return;
+		int length = Math.max(slot + 1, 2 * scored.length);
+		errors = Arrays.copyOf(errors, length);
+		models = Arrays.copyOf(models, length);
+		started = Arrays.copyOf(started, length);
+		scored = Arrays.copyOf(scored, length);
+	}
+}
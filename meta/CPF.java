@@ -21,11 +21,14 @@
 package moa.classifiers.meta;
 
 import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
 import com.yahoo.labs.samoa.instances.Instance;
-import com.yahoo.labs.samoa.instances.Instances;
 import moa.capabilities.CapabilitiesHandler;
 import moa.capabilities.Capability;
 import moa.capabilities.ImmutableCapabilities;
@@ -44,37 +47,82 @@ public class CPF extends AbstractCPF implements MultiClassClassifier, Capabiliti
             "The minimum size of the buffer",
             60, 0, 1000);
     
+    public IntOption fingerprintCandidatesOption = new IntOption(
+            "fingerprintCandidates",
+            'k',
+            "The number of stored models with the most similar prediction fingerprints to test on the buffer when drift is detected (0 tests every model)",
+            0, 0, Integer.MAX_VALUE);
+    
+    public IntOption probeSizeOption = new IntOption(
+            "probeSize",
+            'n',
+            "The number of instances used to fingerprint models, taken from the start of the stream and then from drift buffers, at most bufferSize by default so fingerprinting costs no more than testing a model on the buffer",
+            32, 8, 65536);
+    
+    public IntOption probeRefreshOption = new IntOption(
+            "probeRefresh",
+            'g',
+            "Replace half of the fingerprint probes with drift buffer instances once in this many drifts, after which fingerprints are compared on the probes they share and updated as models are tested (0 keeps the first probes)",
+            10, 0, Integer.MAX_VALUE);
+    
+    public FlagOption fingerprintFallbackOption = new FlagOption(
+            "fingerprintFallback",
+            'x',
+            "A flag that tests every stored model when no fingerprint candidate is similar enough to the buffer");
+    
+    public IntOption recallSampleFrequencyOption = new IntOption(
+            "recallSampleFrequency",
+            'r',
+            "Test every stored model on one in this many drifts to measure how often the fingerprint candidates lead to the model a search of every model selects (0 never)",
+            20, 0, Integer.MAX_VALUE);
+    
+    public MultiChoiceOption candidateOrderOption = new MultiChoiceOption(
+            "candidateOrder",
+            'o',
+            "The order stored models are tested in for reuse, the first model similar enough is used",
+            new String[]{"age", "recency", "fadeScore", "reuses"},
+            new String[]{"Oldest model first",
+                "Most recently selected model first",
+                "Highest fade score first",
+                "Most reused model first"},
+            0);
+    
     double similarityMargin;
     int bufferSize;
     int fadePoints;
     
 	//no max on classifiers
-    ArrayList<Classifier> classifierCollection = new ArrayList<Classifier>();
+    ModelRepository classifierCollection = new ModelRepository();
     Integer currentClassifier = 0;
     
     //classifier results to compare
-    ArrayList<HashMap<Integer, double[]>> modelComparisonMeasurements = new ArrayList<HashMap<Integer, double[]>>();
+    AgreementMatrix modelComparisonMeasurements = new AgreementMatrix();
     int ddmPriorLevel = 0;
     
-    //counter for total comparison measurements 
-    int numberInstances = 0;
-    int totalBufferInstances = 0;
-    int numDrifts = 0;
-    int modelReuses = 0;
-    int modelMerges = 0;
-    int maxModels = 0;
-    int currentModels = 0;
-    
     //buffer for instances
-    Instances buffer = new Instances();
+    InstanceRingBuffer buffer = new InstanceRingBuffer(1000);
     
     //objects for model fading
     boolean fadeModels;
-    HashMap<Integer, Integer> modelFadeScores = new HashMap<Integer, Integer>();
-    int modelsFaded = 0;
+    FadeSchedule fadeSchedule = new FadeSchedule();
+    
+    //prediction fingerprints of the stored models, null unless fingerprintCandidates is set
+    FingerprintIndex fingerprints;
+    
+    //drift at which each model was last selected and how often it was reused, for ordering candidates
+    int[] modelLastSelected = new int[0];
+    int[] modelReuseCounts = new int[0];
+    
+    //start of the current wait for the buffer to fill
+    long bufferStallStart = -1;
     
     public static final int DDM_BUILD_BUFFER = 3;
     
+    static final int ORDER_AGE = 0;
+    static final int ORDER_RECENCY = 1;
+    static final int ORDER_FADE = 2;
+    static final int ORDER_REUSES = 3;
+    
     @Override
     public void resetLearningImpl() {
         //this.newclassifier = this.classifier.copy();
@@ -86,21 +134,23 @@ public class CPF extends AbstractCPF implements MultiClassClassifier, Capabiliti
         this.similarityMargin = this.similarityBetweenModelsOnBufferOption.getValue();
         this.bufferSize = this.bufferSizeOption.getValue();
         this.fadePoints = this.fadePointsOption.getValue();
-        this.buffer.delete();
+        this.buffer.setCapacity(Math.max(this.maxBufferSizeOption.getValue(), this.bufferSize));
         this.classifierCollection.clear();
-        this.numberInstances = 0;
-        this.totalBufferInstances = 0;
-        this.modelsFaded = 0;
-        this.numDrifts = 0;
-        this.modelReuses = 0;
-        this.modelMerges = 0;
-        this.maxModels = 0;
-        this.currentModels = 1;
+        this.classifierCollection.setMaxHot(this.hotModelsOption.getValue());
+        this.classifierCollection.setSpillDirectory(this.spillDirectoryOption.getValue());
+        this.resetMeasurements();
+        this.bufferStallStart = -1;
         this.modelComparisonMeasurements.clear();
+        this.fadeSchedule.clear();
+        this.resetMemoryBudget();
+        this.modelLastSelected = new int[0];
+        this.modelReuseCounts = new int[0];
+        this.fingerprints = this.fingerprintCandidatesOption.getValue() > 0 ? new FingerprintIndex(this.probeSizeOption.getValue()) : null;
         
         //model management flags
         fadeModels = fadeModelOption.isSet() ? true : false;
         createModel();
+        this.resetServing();
     }
     
     //Run usual drift-detection but check for equivalent models on change
@@ -110,16 +160,27 @@ public class CPF extends AbstractCPF implements MultiClassClassifier, Capabiliti
     	//sometimes, we just want these instances to build a buffer to inform model selection
     	//so this method just stores incoming instances for this buffer
     	this.numberInstances++;
+    	countForBudget();
+    	this.modelCountSum += this.currentModels;
+    	if(fingerprints != null) fingerprints.addProbe(inst);
     	if(ddmLevel == DDM_BUILD_BUFFER){
-    		buffer.add(inst);
-    		if(buffer.size() >= bufferSize) this.getNextModel();
+    		addToBuffer(buffer, inst);
+    		if(buffer.size() >= bufferSize){
+    			this.getNextModel();
+    			invalidateVotes();
+    		}
     		return;
     	}
         
         int trueClass = (int) inst.classValue();
-        boolean prediction = Utils.maxIndex(classifierCollection.get(currentClassifier)
-                .getVotesForInstance(inst)) == trueClass;
+        boolean prediction = Utils.maxIndex(cachedVotes(classifierCollection.get(currentClassifier), inst)) == trueClass;
         this.driftDetectionMethod.input(prediction ? 0.0 : 1.0);
+        handleDetectorLevel(inst);
+        invalidateVotes();
+    }
+    
+    //act on the drift detector's state after it has seen inst
+    private void handleDetectorLevel(Instance inst){
         this.ddmLevel = DDM_INCONTROL_LEVEL;
         if (this.driftDetectionMethod.getChange()) {
             this.ddmLevel = DDM_OUTCONTROL_LEVEL;
@@ -133,12 +194,13 @@ public class CPF extends AbstractCPF implements MultiClassClassifier, Capabiliti
             case DDM_WARNING_LEVEL:
             	if(this.ddmLevel != this.ddmPriorLevel){
             		this.warningDetected++;
-            		buffer.delete();
+            		buffer.clear();
+            		emit(CPFEvent.Type.WARNING, currentClassifier, -1, 0, 0);
             	}
-                buffer.add(inst);
+                addToBuffer(buffer, inst);
                 break;
             case DDM_OUTCONTROL_LEVEL:
-            	buffer.add(inst);
+            	addToBuffer(buffer, inst);
                 this.changeDetected++;
                 numDrifts++;
                 this.getNextModel();
@@ -154,74 +216,152 @@ public class CPF extends AbstractCPF implements MultiClassClassifier, Capabiliti
         ddmPriorLevel = ddmLevel;
     }
     
-    private void getNextModel(){
+    //Same steps as trainOnInstance, with the current model and detector held in locals while in control
+    @Override
+    int trainBatchImpl(Instance[] batch, int from, int to){
+    	if(ddmLevel == DDM_BUILD_BUFFER) return from;
+    	Classifier model = classifierCollection.get(currentClassifier);
+    	ChangeDetector detector = this.driftDetectionMethod;
+    	for(int i = from; i < to; i++){
+    		Instance inst = batch[i];
+    		if(!acceptForTraining(inst)) continue;
+    		this.numberInstances++;
+    		countForBudget();
+    		this.modelCountSum += this.currentModels;
+    		if(fingerprints != null) fingerprints.addProbe(inst);
+    		boolean prediction = Utils.maxIndex(model.getVotesForInstance(inst)) == (int) inst.classValue();
+    		detector.input(prediction ? 0.0 : 1.0);
+    		if(detector.getChange() || detector.getWarningZone()){
+    			handleDetectorLevel(inst);
+    			invalidateVotes();
+    			return i + 1;
+    		}
+    		model.trainOnInstance(inst);
+    		this.ddmLevel = DDM_INCONTROL_LEVEL;
+    		this.ddmPriorLevel = DDM_INCONTROL_LEVEL;
+    	}
+    	invalidateVotes();
+    	return to;
+    }
+    
+    void getNextModel(){
     	//check we have buffer of at least 30 instances and top up with future instances if not
     	if(buffer.size() < bufferSize){
     		this.ddmLevel =  DDM_BUILD_BUFFER;
+    		if(bufferStallStart < 0) bufferStallStart = System.nanoTime();
     		return;
     	}
+    	if(bufferStallStart >= 0){
+    		bufferStallLatency.since(bufferStallStart);
+    		bufferStallStart = -1;
+    	}
 
+    	long driftStart = System.nanoTime();
     	totalBufferInstances += buffer.size();
+    	//the outgoing model has been trained since its fingerprint was taken
+    	if(fingerprints != null && fingerprints.isReady() && classifierCollection.contains(currentClassifier))
+    		fingerprints.update(currentClassifier, classifierCollection.get(currentClassifier));
     	currentClassifier = null;
     	
-    	//get results per model on this comparison window
-    	ArrayList<BitSet> thisBufferResults = new ArrayList<BitSet>();
-    	
-    	//get indices of current models
-    	ArrayList<Integer> currentModels = new ArrayList<Integer>();
-    	for(int i = 0; i < classifierCollection.size(); i++){
-    		if(!(classifierCollection.get(i) == null))
-    			currentModels.add(i);
-    	}
+    	//get indices of current models, oldest first
+    	ArrayList<Integer> currentModels = classifierCollection.liveModels();
     	
-    	for(int i = 0; i < currentModels.size(); i++){
-    		thisBufferResults.add(new BitSet(buffer.size()));
-        	
-    		for(int j = 0; j < buffer.size(); j++){
-    			if (!((Classifier) classifierCollection.get(currentModels.get(i))).correctlyClassifies(buffer.get(j)))
-    				thisBufferResults.get(i).set(j);
+    	//get results per model on this comparison window, only for the fingerprint candidates when there is an index
+    	long phaseStart = System.nanoTime();
+    	BufferResults tested = new BufferResults();
+    	int numCandidates = fingerprintCandidatesOption.getValue();
+    	if(fingerprints != null && fingerprints.isReady() && currentModels.size() > numCandidates){
+    		//the most recently selected models are tested first, and the provisional model behind
+    		//the shortlist is only trained when none of them is reused
+    		ArrayList<Integer> recent = recentModels(currentModels, Math.max(1, numCandidates / 2));
+    		ArrayList<Integer> others = new ArrayList<Integer>(currentModels);
+    		others.removeAll(recent);
+    		if(fingerprints.sampleRecall(recallSampleFrequencyOption.getValue())){
+    			//every model is tested in full, and the model the index would have led to is compared
+    			//with the one a search of every model selects
+    			evaluateMore(tested, recent, true);
+    			evaluateMore(tested, others, true);
+    			int selected = firstSimilar(tested, recent);
+    			if(selected >= 0){
+    				fingerprints.recordRecentReuse();
+    			} else {
+    				ArrayList<Integer> candidates = fingerprintCandidates(others);
+    				selected = firstSimilar(tested, candidates);
+    				if(selected < 0 && fingerprintFallbackOption.isSet()){
+    					others.removeAll(candidates);
+    					selected = firstSimilar(tested, others);
+    				}
+    			}
+    			fingerprints.recordRecall(selected == (tested.similar < 0 ? -1 : tested.models.get(tested.similar)));
+    		} else {
+    			evaluateMore(tested, recent, false);
+    			if(tested.similar >= 0){
+    				fingerprints.recordRecentReuse();
+    			} else {
+    				ArrayList<Integer> candidates = fingerprintCandidates(others);
+    				evaluateMore(tested, candidates, false);
+    				if(fingerprintFallbackOption.isSet() && tested.similar < 0){
+    					//no candidate is good enough, so test the others as well
+    					others.removeAll(candidates);
+    					evaluateMore(tested, others, false);
+    				}
+    			}
     		}
+    		//tested models are brought up to date with refreshed probes while they are at hand
+    		for(int i = 0; i < tested.models.size(); i++)
+    			if(fingerprints.isStale(tested.models.get(i)))
+    				fingerprints.refresh(tested.models.get(i), classifierCollection.get(tested.models.get(i)));
+    	} else {
+    		evaluateMore(tested, currentModels, false);
     	}
+    	ArrayList<Integer> evaluatedModels = tested.models;
+    	long[][] thisBufferResults = tested.results;
+    	int[] testedLengths = tested.lengths;
+    	int similar = tested.similar;
+    	phaseStart = bufferEvaluationLatency.since(phaseStart);
 	    
-    	for(int i = 0; i < currentModels.size(); i++){
-    		for(int j = i + 1; j > i & j < currentModels.size(); j++){
-    			
-    			//ensure comparison tracking values have been initialised
-    			if(modelComparisonMeasurements.get(currentModels.get(i)).get(currentModels.get(j)) == null)
-    				modelComparisonMeasurements.get(currentModels.get(i)).put(currentModels.get(j), 
-    						new double[]{0,0/*,Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE,Double.MIN_VALUE,Double.MIN_VALUE,Double.MIN_VALUE*/});
-    			    			
-    			BitSet difference = (BitSet) thisBufferResults.get(j).clone();
-    			difference.xor(thisBufferResults.get(i));
-   			
-    			double seen_before = modelComparisonMeasurements.get(currentModels.get(i)).get(currentModels.get(j))[0];
-    			double agreed_before = modelComparisonMeasurements.get(currentModels.get(i)).get(currentModels.get(j))[1];
-    			double seen_this_buffer = buffer.size();
-    			double agreed_this_buffer = buffer.size() - difference.cardinality();
-    			
-    			modelComparisonMeasurements.get(currentModels.get(i)).get(currentModels.get(j))[0] = seen_before + seen_this_buffer;
-    			modelComparisonMeasurements.get(currentModels.get(i)).get(currentModels.get(j))[1] = agreed_before + agreed_this_buffer;
+    	if(earlyTerminationOption.isSet()){
+    		//models tested on part of the buffer are compared on the instances both were tested on,
+    		//which can merge different models than a full evaluation would
+    		for(int j = 1; j < evaluatedModels.size(); j++){
+    			for(int i = 0; i < j; i++){
+    				int seen_this_buffer = Math.min(testedLengths[i], testedLengths[j]);
+    				if(seen_this_buffer == 0) continue;
+    				int agreed_this_buffer = seen_this_buffer - AgreementKernel.disagreements(thisBufferResults[i], thisBufferResults[j], seen_this_buffer);
+    				modelComparisonMeasurements.add(evaluatedModels.get(i), evaluatedModels.get(j), seen_this_buffer, agreed_this_buffer);
+    			}
     		}
+    	} else {
+	    	//disagreements for all pairs are counted in one pass over the error masks
+	    	int[] disagreements = pairwiseDisagreements(thisBufferResults, evaluatedModels.size());
+	    	int pair = 0;
+	    	for(int j = 1; j < evaluatedModels.size(); j++){
+	    		for(int i = 0; i < j; i++){
+	    			int seen_this_buffer = buffer.size();
+	    			int agreed_this_buffer = buffer.size() - disagreements[pair++];
+	    			
+	    			modelComparisonMeasurements.add(evaluatedModels.get(i), evaluatedModels.get(j), seen_this_buffer, agreed_this_buffer);
+	    		}
+	    	}
     	}
+    	pairwiseComparisonLatency.since(phaseStart);
     	
-    	//check if we found a good enough model, preferring older models
-    	for(int i = 0; i < thisBufferResults.size(); i++){
-    		//System.out.println("Model " + currentModels.get(i) + " results = " + (double)(buffer.size() - thisBufferResults.get(i).cardinality())/(double)buffer.size());
-    		if((double)(buffer.size() - thisBufferResults.get(i).cardinality())/(double)buffer.size() >= similarityMargin){
-    			this.currentClassifier = currentModels.get(i);
-    			modelReuses++;
-    			System.out.println("Using model " + currentClassifier);
-    			break;
-    		}
+    	//use the first good enough model, in candidate order
+    	if(similar >= 0){
+    		this.currentClassifier = evaluatedModels.get(similar);
+    		modelReuses++;
+    		emit(CPFEvent.Type.REUSE, currentClassifier, -1, buffer.size(), 0);
     	}
     	
 		//if existing models aren't similar enough to a new model, add a new model
     	//train it on even instances in buffer
     	if(currentClassifier == null){
+    		phaseStart = System.nanoTime();
     		createModel();
+    		newClassifiersCreated++;
     		currentModels.add(currentClassifier);
     		
-    		BitSet newModelResults = new BitSet(buffer.size());
+    		long[] newModelResults = AgreementKernel.newMask(buffer.size());
     		
     		//Here we have a double buffer and will initialise a new model on even instances before testing against odds
     		//train
@@ -230,96 +370,258 @@ public class CPF extends AbstractCPF implements MultiClassClassifier, Capabiliti
     		}
     		
     		//test
+    		Instance[] instances = buffer.views();
     		for(int i = 1; i < buffer.size(); i = i + 2){
-    			if (!((Classifier) classifierCollection.get(currentClassifier)).correctlyClassifies(buffer.get(i)))
-    				newModelResults.set(i);
+    			if (!((Classifier) classifierCollection.get(currentClassifier)).correctlyClassifies(instances[i]))
+    				AgreementKernel.set(newModelResults, i);
     			((Classifier)this.classifierCollection.get(currentClassifier)).trainOnInstance(buffer.get(i));
     		}
     		
-    		for(int i = 0; i < thisBufferResults.size(); i++){
-    			BitSet difference = (BitSet) newModelResults.clone();
-    			difference.xor(thisBufferResults.get(i));
-    			//set training bits for new model to zero in difference bitset
-    			for(int j = 0; j < buffer.size(); j = j + 2)
-    				difference.clear(j);
-    			modelComparisonMeasurements.get(currentModels.get(i)).put(currentModels.get(currentModels.size()-1), 
-					new double[]{buffer.size()/2,buffer.size()/2 - difference.cardinality()});
+    		for(int i = 0; i < thisBufferResults.length; i++){
+    			//training instances of the new model are even, so only odd positions are compared
+    			if(testedLengths[i] < 2) continue;
+    			int difference = AgreementKernel.oddDisagreements(newModelResults, thisBufferResults[i], testedLengths[i]);
+    			modelComparisonMeasurements.set(evaluatedModels.get(i), currentClassifier, 
+					testedLengths[i]/2, testedLengths[i]/2 - difference);
     		}
+    		if(fingerprints != null) fingerprints.update(currentClassifier, classifierCollection.get(currentClassifier));
+    		emit(CPFEvent.Type.NEW_MODEL, currentClassifier, -1, buffer.size(), newModelLatency.since(phaseStart) - phaseStart);
     	}
     	
+    	phaseStart = System.nanoTime();
     	this.mergeModels(currentModels);
-    	if (this.fadeModels) fadeModels(currentModels);
+    	phaseStart = mergeLatency.since(phaseStart);
+    	if (this.fadeModels){
+    		fadeModels();
+    		fadeLatency.since(phaseStart);
+    	}
+    	recordSelection(currentClassifier, similar >= 0);
+    	enforceMemoryBudget(classifierCollection, currentClassifier);
+    	this.classifierCollection.setActive(currentClassifier);
+    	compactModels();
+    	if(fingerprints != null) fingerprints.endDrift(buffer, probeRefreshOption.getValue());
     	this.ddmLevel =  DDM_OUTCONTROL_LEVEL;
-    	buffer.delete();
+    	emit(CPFEvent.Type.DRIFT, currentClassifier, -1, buffer.size(), System.nanoTime() - driftStart);
+    	buffer.clear();
     	
     	this.maxModels = Math.max(this.currentModels, this.maxModels);
     }
     
+    //Fill in error masks and tested lengths for models in order, returning the index of the first model within
+    //similarityMargin or -1. With early termination models after that one are not tested at all, unless exhaustive is set
+    private int evaluateCandidates(ArrayList<Integer> models, long[][] results, int[] lengths, boolean exhaustive){
+    	if(earlyTerminationOption.isSet() && !exhaustive){
+    		for(int i = 0; i < results.length; i++)
+    			results[i] = AgreementKernel.newMask(buffer.size());
+    		return evaluateUntilSimilar(classifierCollection, models, buffer, similarityMargin, results, lengths);
+    	}
+    	long[][] full = evaluateModelsOnBuffer(classifierCollection, models, buffer);
+    	System.arraycopy(full, 0, results, 0, full.length);
+    	Arrays.fill(lengths, buffer.size());
+    	for(int i = 0; i < full.length; i++){
+    		if((double)(buffer.size() - AgreementKernel.cardinality(full[i]))/(double)buffer.size() >= similarityMargin)
+    			return i;
+    	}
+    	return -1;
+    }
+    
+    //models tested on the current buffer in the order they were tested, with their error masks and tested lengths
+    private static class BufferResults {
+    	final ArrayList<Integer> models = new ArrayList<Integer>();
+    	long[][] results = new long[0][];
+    	int[] lengths = new int[0];
+    	//index of the first model within similarityMargin, -1 if none
+    	int similar = -1;
+    }
+    
+    //test more models on the buffer, in candidate order, after the ones already tested
+    private void evaluateMore(BufferResults tested, ArrayList<Integer> models, boolean full){
+    	models = orderCandidates(models);
+    	long[][] results = new long[models.size()][];
+    	int[] lengths = new int[models.size()];
+    	int similar = evaluateCandidates(models, results, lengths, full);
+    	int from = tested.models.size();
+    	if(tested.similar < 0 && similar >= 0) tested.similar = from + similar;
+    	tested.results = Arrays.copyOf(tested.results, from + models.size());
+    	System.arraycopy(results, 0, tested.results, from, models.size());
+    	tested.lengths = Arrays.copyOf(tested.lengths, from + models.size());
+    	System.arraycopy(lengths, 0, tested.lengths, from, models.size());
+    	tested.models.addAll(models);
+    }
+    
+    //the first of models, in candidate order, that was tested in full and is within similarityMargin, -1 if none
+    private int firstSimilar(BufferResults tested, ArrayList<Integer> models){
+    	for(int slot : orderCandidates(models)){
+    		int i = tested.models.indexOf(slot);
+    		if(i < 0 || tested.lengths[i] == 0) continue;
+    		if((double)(tested.lengths[i] - AgreementKernel.cardinality(tested.results[i]))/(double)tested.lengths[i] >= similarityMargin)
+    			return slot;
+    	}
+    	return -1;
+    }
+    
+    //the count most recently selected models, oldest first
+    private ArrayList<Integer> recentModels(ArrayList<Integer> models, int count){
+    	ArrayList<Integer> recent = new ArrayList<Integer>(models);
+    	Collections.sort(recent, new Comparator<Integer>(){
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(orderScore(b, ORDER_RECENCY), orderScore(a, ORDER_RECENCY));
+			}
+    	});
+    	List<Integer> top = recent.subList(0, Math.min(count, recent.size()));
+    	ArrayList<Integer> ordered = new ArrayList<Integer>();
+    	for(int slot : models)
+    		if(top.contains(slot)) ordered.add(slot);
+    	return ordered;
+    }
+    
+    //models in the order they are considered for reuse, oldest first unless candidateOrder says otherwise
+    private ArrayList<Integer> orderCandidates(ArrayList<Integer> models){
+    	final int order = candidateOrderOption.getChosenIndex();
+    	if(order == ORDER_AGE) return models;
+    	ArrayList<Integer> ordered = new ArrayList<Integer>(models);
+    	//the sort is stable, so ties stay oldest first
+    	Collections.sort(ordered, new Comparator<Integer>(){
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(orderScore(b, order), orderScore(a, order));
+			}
+    	});
+    	return ordered;
+    }
+    
+    private int orderScore(int slot, int order){
+    	switch(order){
+    		case ORDER_RECENCY:
+    			return slot < modelLastSelected.length ? modelLastSelected[slot] : 0;
+    		case ORDER_FADE:
+    			return fadeSchedule.score(slot);
+    		case ORDER_REUSES:
+    			return slot < modelReuseCounts.length ? modelReuseCounts[slot] : 0;
+    		default:
+    			return 0;
+    	}
+    }
+    
+    //note that a model was selected at this drift, for ordering candidates at later drifts
+    private void recordSelection(int slot, boolean reused){
+    	if(slot >= modelLastSelected.length){
+    		int length = Math.max(slot + 1, 2 * modelLastSelected.length);
+    		modelLastSelected = Arrays.copyOf(modelLastSelected, length);
+    		modelReuseCounts = Arrays.copyOf(modelReuseCounts, length);
+    	}
+    	modelLastSelected[slot] = numDrifts + 1;
+    	if(reused) modelReuseCounts[slot]++;
+    }
+    
+    //Shortlist models by comparing their fingerprints with that of a provisional model trained on the buffer.
+    //Models without a fingerprint yet, which is every model the first time the index is used, or whose fingerprint
+    //shares no probe with the current ones, are fingerprinted first. Other stale fingerprints are compared as they are
+    private ArrayList<Integer> fingerprintCandidates(ArrayList<Integer> models){
+    	for(int slot : models)
+    		if(!fingerprints.isComparable(slot)) fingerprints.refresh(slot, classifierCollection.get(slot));
+    	Classifier provisional = newBaseLearner();
+    	for(int i = 0; i < buffer.size(); i++)
+    		provisional.trainOnInstance(buffer.get(i));
+    	return fingerprints.shortlist(models, fingerprints.signature(provisional), fingerprintCandidatesOption.getValue());
+    }
+    
     //If a model acts the same way as another model similarityMargin proportion of the time, 
-    //merge the newer model with the older model. If model fading enables, older model gets newer model's fade score
-	private void mergeModels(ArrayList<Integer> currentModels){
-		for(int i = 0; i < currentModels.size(); i++){
-			int modelA = currentModels.get(i);
-			if(classifierCollection.get(modelA) == null) continue;
+    //merge the newer model with the older model. If model fading enables, older model gets newer model's fade score.
+    //Only pairs whose agreement changed since the last drift are checked, in the order of currentModels
+	void mergeModels(ArrayList<Integer> currentModels){
+		MergeGroups groups = mergeGroups();
+		ArrayList<Integer> removedModels = new ArrayList<Integer>();
+		for(long pair : changedPairs(modelComparisonMeasurements, currentModels)){
+			int modelA = currentModels.get((int) (pair >>> 32));
+			int modelB = currentModels.get((int) pair);
+			if(!classifierCollection.contains(modelA) || !classifierCollection.contains(modelB)) continue;
 
-			for(int j = i + 1; j < currentModels.size(); j++){
-				int modelB = currentModels.get(j);
-				if(classifierCollection.get(modelB) == null) continue;
-
-				if(modelComparisonMeasurements.get(modelA).get(modelB)[1]/modelComparisonMeasurements.get(modelA).get(modelB)[0] >= similarityMargin){
-					System.out.println("Merged model " + modelB + " with " + modelA);
-					modelMerges++;
-					removeModel(modelB);
-					
-					if(fadeModels){
-						modelFadeScores.put(modelA, modelFadeScores.get(modelA) + ((modelFadeScores.get(modelB) == null) ? 0 : modelFadeScores.get(modelB)));
-						modelFadeScores.put(modelB, null);
-					}
-					
-					if(currentClassifier == modelB) {
-						currentClassifier = modelA;
-						System.out.println("Using " + modelA + " since " + modelB + " has been merged.");
-					}
-					
-				}
+			if(modelComparisonMeasurements.agreement(modelA, modelB) >= similarityMargin){
+				modelMerges++;
+				emit(CPFEvent.Type.MERGE, modelA, modelB, buffer.size(), 0);
+				removeModel(modelB);
+				removedModels.add(modelB);
+				groups.union(modelB, modelA);
 			}
 		}
+		if(groups.isEmpty()) return;
+		
+		//each merged model's fade score goes to the model its group was merged into
+		if(fadeModels){
+			for(int slot : removedModels)
+				fadeSchedule.merge(groups.find(slot), slot);
+		}
+		if(currentClassifier != null) currentClassifier = groups.find(currentClassifier);
+		groups.reset();
 	}
 	
-	private void createModel(){
+	void createModel(){
 		this.currentModels = this.currentModels + 1;
-		this.currentClassifier = classifierCollection.size();
-        this.classifierCollection.add(((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy());
+		this.currentClassifier = this.classifierCollection.add(((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy());
         ((Classifier)this.classifierCollection.get(currentClassifier)).prepareForUse();
-        this.modelComparisonMeasurements.add(new HashMap<Integer, double[]>());
-        if(fadeModels) modelFadeScores.put(currentClassifier, 0);
+        this.classifierCollection.setActive(currentClassifier);
+        this.modelComparisonMeasurements.ensureSlots(classifierCollection.size());
+        if(fadeModels) fadeSchedule.start(currentClassifier);
 	}
 	
 	private void removeModel(int modelToRemove){
 		this.currentModels = this.currentModels - 1;
 		classifierCollection.set(modelToRemove, null);
-		modelComparisonMeasurements.set(modelToRemove,null);
+		modelComparisonMeasurements.clearRow(modelToRemove);
+		if(fingerprints != null) fingerprints.remove(modelToRemove);
+		if(modelBudget != null) modelBudget.remove(modelToRemove);
+		//the slot is reused by the next new model
+		if(modelToRemove < modelLastSelected.length){
+			modelLastSelected[modelToRemove] = 0;
+			modelReuseCounts[modelToRemove] = 0;
+		}
 	}
 	
-	private void fadeModels(ArrayList<Integer> currentModels){
-		int score_to_add = fadePoints;
-    	for(int i:currentModels){
-    		if (i == currentClassifier){
-    			modelFadeScores.put(currentClassifier, score_to_add 
-    				+ ((modelFadeScores.get(currentClassifier) == null) ? 0 : modelFadeScores.get(currentClassifier))); //handles if model is new and not yet in modelFadeScores
-    		} else if (modelFadeScores.get(i) != null){ // null is case where model has been merged
-    			modelFadeScores.put(i, modelFadeScores.get(i) - 1);
-    			if(modelFadeScores.get(i) == 0){
-    				removeModel(i);
-    				this.modelsFaded++;
-    			}
-    		}
-    	}
+	@Override
+	void remapModels(int[] remap, int numSlots){
+		super.remapModels(remap, numSlots);
+		this.currentClassifier = remap[currentClassifier];
+		modelComparisonMeasurements.remap(remap, numSlots);
+		if(fingerprints != null) fingerprints.remap(remap, numSlots);
+		fadeSchedule.remap(remap, numSlots);
+		int[] lastSelected = new int[numSlots];
+		int[] reuseCounts = new int[numSlots];
+		for(int old = 0; old < Math.min(modelLastSelected.length, remap.length); old++){
+			if(remap[old] < 0) continue;
+			lastSelected[remap[old]] = modelLastSelected[old];
+			reuseCounts[remap[old]] = modelReuseCounts[old];
+		}
+		modelLastSelected = lastSelected;
+		modelReuseCounts = reuseCounts;
+	}
+	
+	@Override
+	void evictModel(int slot){
+		removeModel(slot);
+		if(fadeModels) fadeSchedule.remove(slot);
+	}
+	
+	@Override
+	int fadeScore(int slot){
+		return fadeSchedule.score(slot);
+	}
+	
+	//the selected model gains fadePoints and every other model loses a point, models reaching 0 are removed
+	void fadeModels(){
+		for(int slot : fadeSchedule.advance(currentClassifier, fadePoints)){
+			removeModel(slot);
+			this.modelsFaded++;
+			emit(CPFEvent.Type.FADE, slot, -1, buffer.size(), 0);
+		}
 	}
 	
 	@Override
     public double[] getVotesForInstance(Instance inst) {
-        return this.classifierCollection.get(currentClassifier).getVotesForInstance(inst);
+        //votes are only shared with the training step that may follow, never with an earlier prediction
+        invalidateVotes();
+        return cachedVotes(this.classifierCollection.get(currentClassifier), inst).clone();
     }
 	
 	public boolean getWarning(){
@@ -334,11 +636,35 @@ public class CPF extends AbstractCPF implements MultiClassClassifier, Capabiliti
 	}
 	
 	public int getNumModels(){
-		int num = 0;
-		for(int i = 0; i < this.classifierCollection.size(); i++)
-			if(this.classifierCollection.get(i) != null)
-				num++;
-		return num;
+		return this.classifierCollection.liveCount();
+	}
+
+	@Override
+	ModelRepository modelRepository(){
+		return this.classifierCollection;
+	}
+
+	@Override
+	Classifier activeModel(){
+		return currentClassifier == null ? null : this.classifierCollection.get(currentClassifier);
+	}
+
+	@Override
+	int activeSlot(){
+		return currentClassifier == null ? -1 : currentClassifier;
+	}
+
+	@Override
+	FingerprintIndex fingerprintIndex(){
+		return this.fingerprints;
+	}
+
+	@Override
+	void migrateCheckpoint(int version){
+		if(version < 3){
+			modelComparisonMeasurements.markAllCompared();
+			buffer.added = buffer.size();
+		}
 	}
 
 	@Override
@@ -0,0 +1,78 @@
+/*
+ * CPFEvent.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+/**
+ * Something that happened to a CPF or ECPF learner. Model ids are repository
+ * slots, -1 where an event has no such model.
+ */
+public class CPFEvent {
+
+	public enum Type {
+		//the drift detector entered its warning zone
+		WARNING,
+		//drift handling finished, modelId is the model now in use
+		DRIFT,
+		//a stored model was selected for the new concept, ECPF reports the copy as otherModelId
+		REUSE,
+		//a new model was created for the new concept, -1 for ECPF's contending model
+		NEW_MODEL,
+		//otherModelId was merged into modelId
+		MERGE,
+		//a model was removed by fading
+		FADE,
+		//a model was removed to stay within the memory budget, bytes holds its size
+		EVICTION
+	}
+
+	public final Type type;
+	//instances trained on when the event happened
+	public final long instance;
+	public final int modelId;
+	public final int otherModelId;
+	public final int bufferSize;
+	//size in bytes of the model the event is about, 0 if not measured
+	public final long bytes;
+	//time taken by the step that raised the event, 0 if not timed
+	public final long durationNanos;
+
+	public CPFEvent(Type type, long instance, int modelId, int otherModelId, int bufferSize, long durationNanos){
+		this(type, instance, modelId, otherModelId, bufferSize, 0, durationNanos);
+	}
+
+	public CPFEvent(Type type, long instance, int modelId, int otherModelId, int bufferSize, long bytes, long durationNanos){
+		this.type = type;
+		this.instance = instance;
+		this.modelId = modelId;
+		this.otherModelId = otherModelId;
+		this.bufferSize = bufferSize;
+		this.bytes = bytes;
+		this.durationNanos = durationNanos;
+	}
+
+	@Override
+	public String toString(){
+		return type + " at instance " + instance + ": model " + modelId
+				+ (otherModelId >= 0 ? ", other model " + otherModelId : "")
+				+ ", buffer " + bufferSize
+				+ (bytes > 0 ? ", " + bytes + " bytes" : "")
+				+ (durationNanos > 0 ? ", " + (durationNanos / 1000) + "us" : "");
+	}
+}
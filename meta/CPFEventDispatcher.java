@@ -0,0 +1,131 @@
+/*
+ * CPFEventDispatcher.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands events from the training thread to listeners on a daemon thread
+ * through a bounded SpscQueue. Publishing never blocks, events that do not
+ * fit in the queue are dropped and counted.
+ */
+public class CPFEventDispatcher implements Runnable {
+
+	final SpscQueue<CPFEvent> queue;
+	final CopyOnWriteArrayList<CPFListener> listeners = new CopyOnWriteArrayList<CPFListener>();
+	final Thread thread;
+	volatile boolean running = true;
+	volatile boolean idle = false;
+	long dropped = 0;
+
+	public CPFEventDispatcher(int capacity){
+		this.queue = new SpscQueue<CPFEvent>(capacity);
+		this.thread = new Thread(this, "cpf-event-dispatcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public void addListener(CPFListener listener){
+		listeners.add(listener);
+	}
+
+	public boolean removeListener(CPFListener listener){
+		return listeners.remove(listener);
+	}
+
+	public boolean hasListeners(){
+		return !listeners.isEmpty();
+	}
+
+	//called from the training thread only
+	public boolean publish(CPFEvent event){
+		if(!queue.offer(event)){
+			dropped++;
+			return false;
+		}
+		if(idle) LockSupport.unpark(thread);
+		return true;
+	}
+
+	public long getDroppedEvents(){
+		return dropped;
+	}
+
+	//deliver what is queued, then stop the dispatcher thread
+	public void close(){
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run(){
+		while(running || !queue.isEmpty()){
+			CPFEvent event = queue.poll();
+			if(event == null){
+				idle = true;
+				if(running && queue.isEmpty())
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+				idle = false;
+				continue;
+			}
+			for(CPFListener listener : listeners){
+				try {
+					deliver(listener, event);
+				} catch (RuntimeException e) {
+					//a failing listener must not stop delivery to the others
+				}
+			}
+		}
+	}
+
+	private static void deliver(CPFListener listener, CPFEvent event){
+		switch(event.type){
+			case WARNING:
+				listener.onWarning(event);
+				break;
+			case DRIFT:
+				listener.onDrift(event);
+				break;
+			case REUSE:
+				listener.onReuse(event);
+				break;
+			case NEW_MODEL:
+				listener.onNewModel(event);
+				break;
+			case MERGE:
+				listener.onMerge(event);
+				break;
+			case FADE:
+				listener.onFade(event);
+				break;
+			case EVICTION:
+				listener.onEviction(event);
+				break;
+			default:
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * CPFListener.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+/**
+ * Receives CPF and ECPF events on a background dispatcher thread, never on
+ * the training thread. Override the events of interest.
+ */
+public interface CPFListener {
+
+	default void onWarning(CPFEvent event){
+	}
+
+	default void onDrift(CPFEvent event){
+	}
+
+	default void onReuse(CPFEvent event){
+	}
+
+	default void onNewModel(CPFEvent event){
+	}
+
+	default void onMerge(CPFEvent event){
+	}
+
+	default void onFade(CPFEvent event){
+	}
+
+	default void onEviction(CPFEvent event){
+	}
+}
@@ -0,0 +1,399 @@
+/*
+ * CPFServer.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+/**
+ * Line-based server on the loopback interface in front of a CPF or ECPF
+ * learner. Every connection gets its own thread, a virtual thread when the
+ * JVM has them. Train requests from all connections go into one bounded
+ * queue, in the order they arrive, and a single trainer thread takes them off
+ * in batches for trainOnBatch. Predict requests are answered on the
+ * connection's thread from the learner's serving snapshot, so they never wait
+ * for training, which is why the learner must have a servingInterval. Each
+ * prediction borrows one of the snapshot's copies (see
+ * AbstractCPF.getServingVotes), so connections never predict with the same
+ * model at once, and servingCopies should be at least the number of
+ * connections expected to predict concurrently.
+ *
+ * Requests and replies are one line each:
+ *   TRAIN v1,...,vn   queue an instance, OK, or BUSY when the queue is full
+ *   PREDICT v1,...,vn votes of the serving model, VOTES p1,...,pk
+ *   FLUSH             wait until every instance queued so far is trained, OK and the number trained
+ *   QUIT              close the connection
+ * Values are in header order including the class, nominal values are given by
+ * index and ? is missing, so the class of a PREDICT is usually ?. The class
+ * of a TRAIN must be given. A request that cannot be handled gets ERROR and a
+ * message.
+ */
+public class CPFServer {
+
+	final AbstractCPF learner;
+	final InstancesHeader header;
+	final int batchSize;
+	final long maxBatchDelayNanos;
+	final int queueCapacity;
+
+	ServerSocket serverSocket;
+	ExecutorService connections;
+	Thread acceptor;
+	Thread trainer;
+	final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+	volatile boolean running = false;
+
+	//queued instances and the counts below are guarded by lock
+	final ReentrantLock lock = new ReentrantLock();
+	final Condition queued = lock.newCondition();
+	final Condition trainedCondition = lock.newCondition();
+	final ArrayDeque<Queued> queue = new ArrayDeque<Queued>();
+	long accepted = 0;
+	long trained = 0;
+	long batches = 0;
+	long busy = 0;
+	Throwable failure;
+
+	//an accepted instance and when it was queued, which bounds how long its batch may wait
+	static final class Queued {
+		final Instance inst;
+		final long enqueued;
+
+		Queued(Instance inst, long enqueued){
+			this.inst = inst;
+			this.enqueued = enqueued;
+		}
+	}
+
+	/**
+	 * A server for a prepared learner. Up to batchSize queued instances are
+	 * trained together, and an instance waits at most maxBatchDelay
+	 * microseconds for others to fill its batch. TRAIN is refused with BUSY
+	 * once queueCapacity instances are waiting.
+	 */
+	public CPFServer(AbstractCPF learner, InstancesHeader header, int batchSize, long maxBatchDelayMicros, int queueCapacity){
+		if(learner.servingIntervalOption.getValue() == 0)
+			throw new IllegalStateException("CPFServer serves predictions from snapshots, set the learner's servingInterval");
+		this.learner = learner;
+		this.header = header;
+		this.batchSize = Math.max(1, batchSize);
+		this.maxBatchDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxBatchDelayMicros);
+		this.queueCapacity = Math.max(1, queueCapacity);
+	}
+
+	//start listening on the given loopback port, 0 for any free port
+	public synchronized void start(int port) throws IOException {
+		if(running) throw new IllegalStateException("CPFServer is already running");
+		serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+		running = true;
+		connections = newConnectionExecutor();
+		trainer = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				train();
+			}
+		}, "cpf-server-trainer");
+		trainer.setDaemon(true);
+		trainer.start();
+		acceptor = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				accept();
+			}
+		}, "cpf-server-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort(){
+		return serverSocket.getLocalPort();
+	}
+
+	//stop accepting, drop open connections and stop training, instances still queued are not trained
+	public synchronized void close(){
+		if(!running) return;
+		running = false;
+		closeQuietly(serverSocket);
+		for(Socket client : clients)
+			closeQuietly(client);
+		connections.shutdownNow();
+		lock.lock();
+		try {
+			queued.signalAll();
+			trainedCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			acceptor.join(TimeUnit.SECONDS.toMillis(5));
+			trainer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getTrained(){
+		lock.lock();
+		try {
+			return trained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getBatches(){
+		lock.lock();
+		try {
+			return batches;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//TRAIN requests refused because the queue was full
+	public long getBusy(){
+		lock.lock();
+		try {
+			return busy;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//a virtual thread per task when the JVM has them, this is built for Java 8 so they are looked up by name
+	static ExecutorService newConnectionExecutor(){
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "cpf-server-connection");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	private void accept(){
+		while(running){
+			final Socket client;
+			try {
+				client = serverSocket.accept();
+			} catch (IOException e) {
+				//the server socket was closed
+				return;
+			}
+			clients.add(client);
+			try {
+				connections.execute(new Runnable(){
+					@Override
+					public void run(){
+						serve(client);
+					}
+				});
+			} catch (RuntimeException e) {
+				clients.remove(client);
+				closeQuietly(client);
+			}
+		}
+	}
+
+	private void serve(Socket client){
+		try {
+			client.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+			String line;
+			while(running && (line = in.readLine()) != null){
+				if(line.equals("QUIT")) break;
+				out.write(handle(line));
+				out.write('\n');
+				//replies to pipelined requests go out together
+				if(!in.ready()) out.flush();
+			}
+			out.flush();
+		} catch (SocketException e) {
+			//closed by the client or by close()
+		} catch (IOException e) {
+			//the connection is dropped, other connections carry on
+		} finally {
+			clients.remove(client);
+			closeQuietly(client);
+		}
+	}
+
+	String handle(String line){
+		int split = line.indexOf(' ');
+		String command = split < 0 ? line : line.substring(0, split);
+		String arguments = split < 0 ? "" : line.substring(split + 1);
+		try {
+			if(command.equals("TRAIN")) return enqueue(parse(arguments, true)) ? "OK" : "BUSY";
+			if(command.equals("PREDICT")) return votes(learner.getServingVotes(parse(arguments, false)));
+			if(command.equals("FLUSH")) return "OK " + flush();
+			return "ERROR unknown request " + command;
+		} catch (RuntimeException e) {
+			return "ERROR " + e.getMessage();
+		}
+	}
+
+	//an instance from comma separated values, a training instance must have its class
+	Instance parse(String values, boolean needsClass){
+		String[] fields = values.split(",", -1);
+		if(fields.length != header.numAttributes())
+			throw new IllegalStateException("expected " + header.numAttributes() + " values, got " + fields.length);
+		double[] attributes = new double[fields.length];
+		for(int i = 0; i < fields.length; i++){
+			String field = fields[i].trim();
+			attributes[i] = field.equals("?") ? Double.NaN : Double.parseDouble(field);
+		}
+		if(needsClass && Double.isNaN(attributes[header.classIndex()]))
+			throw new IllegalStateException("the class of a training instance is missing");
+		Instance inst = new DenseInstance(1.0, attributes);
+		inst.setDataset(header);
+		return inst;
+	}
+
+	static String votes(double[] votes){
+		StringBuilder reply = new StringBuilder("VOTES ");
+		for(int i = 0; i < votes.length; i++){
+			if(i > 0) reply.append(',');
+			reply.append(votes[i]);
+		}
+		return reply.toString();
+	}
+
+	boolean enqueue(Instance inst){
+		lock.lock();
+		try {
+			checkFailure();
+			if(queue.size() >= queueCapacity){
+				busy++;
+				return false;
+			}
+			queue.add(new Queued(inst, System.nanoTime()));
+			accepted++;
+			if(queue.size() == 1 || queue.size() == batchSize) queued.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//wait until every instance accepted before the call is trained, returns the number trained
+	long flush(){
+		lock.lock();
+		try {
+			long target = accepted;
+			while(running && trained < target && failure == null)
+				trainedCondition.awaitUninterruptibly();
+			checkFailure();
+			return trained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void checkFailure(){
+		if(failure != null) throw new IllegalStateException("training failed: " + failure);
+	}
+
+	//the single training pipeline, batches keep the order instances were accepted in
+	private void train(){
+		Instance[] batch = new Instance[batchSize];
+		while(true){
+			int n = 0;
+			lock.lock();
+			try {
+				while(running && queue.isEmpty())
+					queued.awaitUninterruptibly();
+				if(!running) return;
+				//wait for a full batch, but no longer than the oldest instance may be held from when it was queued
+				long deadline = queue.peek().enqueued + maxBatchDelayNanos;
+				while(running && queue.size() < batchSize){
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) break;
+					try {
+						queued.awaitNanos(remaining);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				while(n < batchSize && !queue.isEmpty())
+					batch[n++] = queue.poll().inst;
+			} finally {
+				lock.unlock();
+			}
+
+			Throwable error = null;
+			try {
+				learner.trainOnBatch(batch, 0, n);
+			} catch (Throwable t) {
+				error = t;
+			}
+			for(int i = 0; i < n; i++)
+				batch[i] = null;
+
+			lock.lock();
+			try {
+				trained += n;
+				batches++;
+				//later requests are refused, the learner is in an unknown state
+				if(error != null && failure == null){
+					failure = error;
+					queue.clear();
+				}
+				trainedCondition.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable){
+		try {
+			if(closeable != null) closeable.close();
+		} catch (IOException e) {
+			//nothing more to release
+		}
+	}
+}
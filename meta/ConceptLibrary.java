@@ -0,0 +1,280 @@
+/*
+ * ConceptLibrary.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+
+/**
+ * Concept models shared by every key of a KeyedCPF. Keys hold a concept id,
+ * not a model, and every key on a concept trains the one stored model, so a
+ * concept costs its memory once however many keys use it. Each model is its
+ * own lock: training, prediction and evaluation on a buffer take it, so keys
+ * on the same concept are serialized while keys on different concepts are not.
+ *
+ * Readers take a snapshot of the models without locking, the array is copied
+ * under the library lock when a concept is added or removed, which only
+ * happens at drifts. At each drift the agreement of the concepts evaluated on
+ * the key's buffer is recorded, and concepts that agree within
+ * similarityMargin are merged into the older one, as CPF merges its models.
+ * Concepts fade as in CPF when fadePoints is not -1, and are evicted by the
+ * budget's policy when over budget. A concept some key is using is never
+ * merged away, faded or evicted.
+ */
+public class ConceptLibrary implements Serializable {
+
+	private static final long serialVersionUID = 2L;
+
+	//models by concept id, null for removed concepts whose id is free again
+	volatile Classifier[] concepts = new Classifier[0];
+	//number of keys whose active concept each concept is
+	int[] users = new int[0];
+
+	final double similarityMargin;
+	//-1 when concepts do not fade
+	final int fadePoints;
+	final AgreementMatrix agreement = new AgreementMatrix();
+	final FadeSchedule fade = new FadeSchedule();
+	//null when there is no memory budget
+	final ModelBudget budget;
+
+	int drifts = 0;
+	long merges = 0;
+	long faded = 0;
+	long evicted = 0;
+
+	//merging, fading and the memory budget as configured on a CPF
+	public ConceptLibrary(AbstractCPF prototype){
+		this(prototype.similarityBetweenModelsOnBufferOption.getValue(),
+				prototype.fadeModelOption.isSet() ? prototype.fadePointsOption.getValue() : -1,
+				prototype.newMemoryBudget());
+	}
+
+	public ConceptLibrary(double similarityMargin, int fadePoints, ModelBudget budget){
+		this.similarityMargin = similarityMargin;
+		this.fadePoints = fadePoints;
+		this.budget = budget;
+	}
+
+	//the current models, indexed by concept id, must only be used through the methods below
+	public Classifier[] snapshot(){
+		return concepts;
+	}
+
+	//the number of concept ids, including removed ones
+	public int size(){
+		return concepts.length;
+	}
+
+	public Classifier get(int concept){
+		return concepts[concept];
+	}
+
+	public synchronized int getNumConcepts(){
+		int count = 0;
+		for(Classifier model : concepts)
+			if(model != null) count++;
+		return count;
+	}
+
+	public synchronized long getMerges(){
+		return merges;
+	}
+
+	public synchronized long getFaded(){
+		return faded;
+	}
+
+	public synchronized long getEvicted(){
+		return evicted;
+	}
+
+	//measured bytes of the stored concepts, 0 when there is no memory budget
+	public synchronized long getTotalBytes(){
+		return budget == null ? 0 : budget.getTotalBytes();
+	}
+
+	//train a concept the calling key is using
+	public void train(int concept, Instance inst){
+		Classifier model = concepts[concept];
+		synchronized(model){
+			model.trainOnInstance(inst);
+		}
+	}
+
+	//votes of a concept the calling key is using
+	public double[] votes(int concept, Instance inst){
+		Classifier model = concepts[concept];
+		synchronized(model){
+			return model.getVotesForInstance(inst);
+		}
+	}
+
+	//the buffer instances a model misclassifies, as an AgreementKernel mask
+	static long[] errors(Classifier model, Instance[] instances, int size){
+		long[] mask = AgreementKernel.newMask(size);
+		synchronized(model){
+			for(int j = 0; j < size; j++)
+				if(!model.correctlyClassifies(instances[j])) AgreementKernel.set(mask, j);
+		}
+		return mask;
+	}
+
+	/**
+	 * Finish a key's drift. The key stops using previous (-1 for none), the
+	 * agreement between the evaluated models on its buffer is recorded, and
+	 * the oldest concept that is still stored and misclassified at most
+	 * 1 - similarityMargin of the buffer becomes the key's concept. errors[c]
+	 * is the mask of snapshot model evaluated[c], null if it was not
+	 * evaluated. Returns -1 when no concept qualified, the key then adds one.
+	 */
+	public synchronized int select(int previous, Classifier[] evaluated, long[][] errors, int size){
+		release(previous);
+		drifts++;
+		//models replaced since the snapshot, or removed, take no part
+		int numEvaluated = Math.min(evaluated.length, concepts.length);
+		agreement.ensureSlots(concepts.length);
+		for(int j = 1; j < numEvaluated; j++){
+			if(!current(j, evaluated, errors)) continue;
+			for(int i = 0; i < j; i++){
+				if(!current(i, evaluated, errors)) continue;
+				agreement.add(i, j, size, size - AgreementKernel.disagreements(errors[i], errors[j], size));
+			}
+		}
+		int chosen = -1;
+		for(int c = 0; c < numEvaluated && chosen < 0; c++){
+			if(!current(c, evaluated, errors)) continue;
+			if((double)(size - AgreementKernel.cardinality(errors[c]))/(double)size >= similarityMargin) chosen = c;
+		}
+		if(chosen < 0) return -1;
+		users[chosen]++;
+		maintain(chosen);
+		return chosen;
+	}
+
+	/**
+	 * Store a new concept, which the calling key is then using, after select
+	 * found none for the same buffer, and return its id. As in CPF the model
+	 * was trained on the even buffer instances and tested on each odd one
+	 * before training on it, and modelErrors holds those tests, so its
+	 * agreement with the evaluated concepts is recorded on the odd instances.
+	 */
+	public synchronized int add(Classifier model, Classifier[] evaluated, long[][] errors, long[] modelErrors, int size){
+		int concept = 0;
+		while(concept < concepts.length && concepts[concept] != null) concept++;
+		Classifier[] next = Arrays.copyOf(concepts, Math.max(concepts.length, concept + 1));
+		next[concept] = model;
+		if(users.length < next.length) users = Arrays.copyOf(users, next.length);
+		users[concept] = 1;
+		concepts = next;
+		agreement.ensureSlots(next.length);
+		int numEvaluated = Math.min(evaluated.length, concepts.length);
+		for(int c = 0; c < numEvaluated && size >= 2; c++){
+			if(c == concept || !current(c, evaluated, errors)) continue;
+			int difference = AgreementKernel.oddDisagreements(modelErrors, errors[c], size);
+			agreement.set(c, concept, size / 2, size / 2 - difference);
+		}
+		if(fadePoints >= 0) fade.start(concept);
+		maintain(concept);
+		return concept;
+	}
+
+	//a key stops using a concept, -1 for none
+	public synchronized void release(int concept){
+		if(concept < 0) return;
+		users[concept]--;
+		//its size is stale while it is in use
+		if(budget != null) measure(concept);
+	}
+
+	//merge, fade and evict once the selected concept is known, the same steps CPF takes at the end of a drift
+	private void maintain(int selected){
+		for(long pair : agreement.takeChanged()){
+			int newer = (int) (pair >>> 32), older = (int) pair;
+			if(concepts[newer] == null || concepts[older] == null) continue;
+			if(agreement.agreement(older, newer) < similarityMargin) continue;
+			//keep the older concept unless only the newer one can go
+			int removed = users[newer] == 0 ? newer : older;
+			if(users[removed] > 0) continue;
+			int kept = removed == newer ? older : newer;
+			if(fadePoints >= 0) fade.merge(kept, removed);
+			remove(removed);
+			merges++;
+		}
+
+		if(fadePoints >= 0){
+			ArrayList<Integer> expired = fade.advance(selected, fadePoints);
+			for(int concept : expired){
+				if(concepts[concept] == null) continue;
+				if(users[concept] > 0){
+					fade.start(concept);
+				} else {
+					remove(concept);
+					faded++;
+				}
+			}
+		}
+
+		if(budget == null) return;
+		budget.recordUse(selected, drifts);
+		for(int c = 0; c < concepts.length; c++)
+			if(concepts[c] != null && (c == selected || !budget.isMeasured(c))) measure(c);
+		while(budget.isOverBudget()){
+			int victim = -1;
+			double worst = 0;
+			for(int c = 0; c < concepts.length; c++){
+				if(concepts[c] == null || users[c] > 0) continue;
+				double score = budget.getPolicy().evictionScore(c, budget, fade.score(c));
+				if(victim < 0 || score > worst){
+					victim = c;
+					worst = score;
+				}
+			}
+			if(victim < 0) break;
+			remove(victim);
+			evicted++;
+		}
+	}
+
+	private boolean current(int concept, Classifier[] evaluated, long[][] errors){
+		return errors[concept] != null && evaluated[concept] != null && concepts[concept] == evaluated[concept];
+	}
+
+	private void measure(int concept){
+		Classifier model = concepts[concept];
+		synchronized(model){
+			budget.measure(concept, model);
+		}
+	}
+
+	private void remove(int concept){
+		Classifier[] next = concepts.clone();
+		next[concept] = null;
+		concepts = next;
+		agreement.clearRow(concept);
+		fade.remove(concept);
+		if(budget != null) budget.remove(concept);
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * CopyOnWriteClassifier.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.classifiers.AbstractClassifier;
+import moa.classifiers.Classifier;
+import moa.core.Measurement;
+
+/**
+ * A copy of a stored model that shares the stored model until it is first
+ * changed. Predictions are read from the shared model, and the deep copy is
+ * only taken by the first call that trains, resets or reconfigures it, so a
+ * reused model that is replaced, merged away or evicted before it is trained
+ * never costs a copy.
+ *
+ * The shared model must not be trained while it is shared. ECPF only trains
+ * its current and contending models, and a reused model is always the copy,
+ * never the stored model it came from. While the stored model is on the heap
+ * in its own slot, that slot is charged for its bytes and the copy is not,
+ * see ModelRepository.sharesStoredModel.
+ */
+public class CopyOnWriteClassifier extends AbstractClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	//the stored model this is a copy of, null once the copy has been taken
+	Classifier shared;
+	//the private copy, null until the first change
+	Classifier model;
+
+	public CopyOnWriteClassifier(Classifier shared){
+		//a copy of a copy that has not been taken yet shares the same stored model
+		while(shared instanceof CopyOnWriteClassifier && ((CopyOnWriteClassifier) shared).isShared())
+			shared = ((CopyOnWriteClassifier) shared).shared;
+		this.shared = shared;
+	}
+
+	public boolean isShared(){
+		return model == null;
+	}
+
+	//whether this copy still shares the given stored model
+	public boolean shares(Classifier stored){
+		return model == null && stored != null && shared == stored;
+	}
+
+	//the model to read from
+	Classifier target(){
+		return model == null ? shared : model;
+	}
+
+	//the model to change, copying the shared model the first time
+	Classifier own(){
+		if(model == null){
+			model = shared.copy();
+			shared = null;
+		}
+		return model;
+	}
+
+	@Override
+	public void trainOnInstance(Instance inst){
+		own().trainOnInstance(inst);
+	}
+
+	@Override
+	public void trainOnInstanceImpl(Instance inst){
+		own().trainOnInstance(inst);
+	}
+
+	@Override
+	public void resetLearning(){
+		own().resetLearning();
+	}
+
+	@Override
+	public void resetLearningImpl(){
+		own().resetLearning();
+	}
+
+	@Override
+	public void setModelContext(InstancesHeader ih){
+		own().setModelContext(ih);
+	}
+
+	@Override
+	public void setRandomSeed(int s){
+		own().setRandomSeed(s);
+	}
+
+	@Override
+	public InstancesHeader getModelContext(){
+		return target().getModelContext();
+	}
+
+	@Override
+	public boolean trainingHasStarted(){
+		return target().trainingHasStarted();
+	}
+
+	@Override
+	public double trainingWeightSeenByModel(){
+		return target().trainingWeightSeenByModel();
+	}
+
+	@Override
+	public double[] getVotesForInstance(Instance inst){
+		return target().getVotesForInstance(inst);
+	}
+
+	@Override
+	public boolean correctlyClassifies(Instance inst){
+		return target().correctlyClassifies(inst);
+	}
+
+	@Override
+	public Measurement[] getModelMeasurements(){
+		return target().getModelMeasurements();
+	}
+
+	@Override
+	protected Measurement[] getModelMeasurementsImpl(){
+		return target().getModelMeasurements();
+	}
+
+	@Override
+	public Classifier[] getSubClassifiers(){
+		return target().getSubClassifiers();
+	}
+
+	//AbstractClassifier's constructor asks before shared is assigned
+	@Override
+	public boolean isRandomizable(){
+		Classifier target = target();
+		return target != null && target.isRandomizable();
+	}
+
+	@Override
+	public void getModelDescription(StringBuilder out, int indent){
+		target().getDescription(out, indent);
+	}
+
+	@Override
+	public void getDescription(StringBuilder sb, int indent){
+		target().getDescription(sb, indent);
+	}
+
+	//a deep copy of the model read from, which a caller may train without touching the stored model
+	@Override
+	public Classifier copy(){
+		return target().copy();
+	}
+
+	//while shared this is the stored model's size, which is only charged to this copy once nothing else holds it
+	@Override
+	public int measureByteSize(){
+		return target().measureByteSize();
+	}
+}
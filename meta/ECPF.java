@@ -19,12 +19,15 @@
 
 package moa.classifiers.meta;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
 import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.HashMap;
+import java.util.Arrays;
 import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
 import com.yahoo.labs.samoa.instances.Instance;
-import com.yahoo.labs.samoa.instances.Instances;
 import moa.capabilities.CapabilitiesHandler;
 import moa.capabilities.Capability;
 import moa.capabilities.ImmutableCapabilities;
@@ -43,13 +46,30 @@ public class ECPF extends AbstractCPF implements MultiClassClassifier, Capabilit
             "Frequency of comparing models (new vs. reused) to decide which to use for classifying incoming instances",
             1, 0, 100000);
     
+    public MultiChoiceOption shadowTrainingOption = new MultiChoiceOption(
+            "shadowTraining",
+            'a',
+            "Where the contending model is tested and trained",
+            new String[]{"inline", "pipelined", "pipelinedDeterministic"},
+            new String[]{"On the training thread",
+                "On a worker thread, compared with the current model on the instances it has caught up with",
+                "On a worker thread, compared with the current model every modelCheckFreq instances once the worker has caught up, so the models are the same as inline training however the stream is split into batches. The worker only runs ahead between comparisons, so this needs a modelCheckFreq above 1 to gain anything"},
+            0);
+    
+    public IntOption shadowQueueSizeOption = new IntOption(
+            "shadowQueueSize",
+            'q',
+            "The number of instances the contending model's worker may fall behind before training blocks",
+            1024, 1, 1 << 20);
+    
 	//no max on classifiers
-	ArrayList<Classifier> classifierCollection = new ArrayList<Classifier>();
+	ModelRepository classifierCollection = new ModelRepository();
 	Integer currentClassifier = 0;
-	Classifier newModel = null;
+	//written by writeObject, except in checkpoints where it is dropped and a new one is built at the next drift
+	transient Classifier newModel = null;
 
 	//buffer for instances
-	Instances buffer = new Instances();
+	InstanceRingBuffer buffer = new InstanceRingBuffer(1000);
 	
 	double similarityMargin;
 	int bufferSize;
@@ -58,13 +78,6 @@ public class ECPF extends AbstractCPF implements MultiClassClassifier, Capabilit
     int ddmPriorLevel = 0;
     
     //counters for measuring ECPF behaviour
-    int numberInstances = 0;
-    int totalBufferInstances = 0;
-    int numDrifts = 0;
-    int modelReuses = 0;
-    int modelMerges = 0;
-    int maxModels = 0;
-    int currentModels = 0;
     int reuseFlag = 1;
     
     //Counters for classifier
@@ -74,15 +87,24 @@ public class ECPF extends AbstractCPF implements MultiClassClassifier, Capabilit
 	
     // Object to hold measurements relating to model - accuracy and model similarity
     ArrayList<Integer[]> modelAccuracyMeasurements = new ArrayList<Integer[]>();
-    ArrayList<HashMap<Integer, Integer[]>> modelComparisonMeasurements = new ArrayList<HashMap<Integer, Integer[]>>();
+    AgreementMatrix modelComparisonMeasurements = new AgreementMatrix();
     
     //objects for model fading
     boolean fadeModels;
-    HashMap<Integer, Integer> modelFadeScores = new HashMap<Integer, Integer>();
-    int modelsFaded = 0;
+    FadeSchedule fadeSchedule = new FadeSchedule();
+    
+    //worker that owns newModel in the pipelined modes, started on first use and stopped by close or a reset
+    transient ShadowTrainer shadow;
+    //whether the worker has already been given the current instance to test
+    transient boolean shadowTested = false;
+    //currCorrect after each instance of the concept, for comparing with a worker that has fallen behind
+    transient int[] currCorrectHistory;
     
     public static final int DDM_BUILD_BUFFER = 3;
     
+    static final int SHADOW_PIPELINED = 1;
+    static final int SHADOW_DETERMINISTIC = 2;
+    
 	@Override
 	public void resetLearningImpl() {
 	
@@ -92,34 +114,35 @@ public class ECPF extends AbstractCPF implements MultiClassClassifier, Capabilit
 		this.similarityMargin = this.similarityBetweenModelsOnBufferOption.getValue();
 		this.fadePoints = this.fadePointsOption.getValue();
 		this.modelCheckFreq = this.modelCheckFreqOption.getValue();
-		this.buffer.delete();
+		this.buffer.setCapacity(this.maxBufferSizeOption.getValue());
 		this.classifierCollection.clear();
-	    this.numberInstances = 0;
-	    this.totalBufferInstances = 0;
-	    this.modelsFaded = 0;
-	    this.numDrifts = 0;
-	    this.modelReuses = 0;
-	    this.modelMerges = 0;
-	    this.maxModels = 0;
-		this.currentModels = 1;
+		this.classifierCollection.setMaxHot(this.hotModelsOption.getValue());
+		this.classifierCollection.setSpillDirectory(this.spillDirectoryOption.getValue());
+		this.modelComparisonMeasurements.clear();
+		this.fadeSchedule.clear();
+	    this.resetMeasurements();
+	    this.resetMemoryBudget();
 		this.currCorrect = 0;
 		this.newCorrect = 0;
 		this.totalInst = 0;
+		closeShadow();
 
 	   //model management flags
 	    fadeModels = fadeModelOption.isSet() ? true : false;
 	    
 	    addModel(((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy());
 	    this.classifierCollection.get(currentClassifier).prepareForUse();
+	    this.resetServing();
 	}
 	
-	private void addModel(Classifier newModel){
+	void addModel(Classifier newModel){
 		this.currentModels = this.currentModels + 1;
-		this.currentClassifier = classifierCollection.size();
-	    this.classifierCollection.add(newModel);
-	    this.modelAccuracyMeasurements.add(new Integer[] {0,0});
-	    this.modelComparisonMeasurements.add(new HashMap<Integer, Integer[]>());
-	    if(fadeModels) modelFadeScores.put(currentClassifier, 0);
+		this.currentClassifier = this.classifierCollection.add(newModel);
+	    this.classifierCollection.setActive(currentClassifier);
+	    if(currentClassifier < modelAccuracyMeasurements.size()) this.modelAccuracyMeasurements.set(currentClassifier, new Integer[] {0,0});
+	    else this.modelAccuracyMeasurements.add(new Integer[] {0,0});
+	    this.modelComparisonMeasurements.ensureSlots(classifierCollection.size());
+	    if(fadeModels) fadeSchedule.start(currentClassifier);
 	}
 	
     //Run usual drift-detection but check for equivalent models on change
@@ -127,10 +150,18 @@ public class ECPF extends AbstractCPF implements MultiClassClassifier, Capabilit
     public void trainOnInstanceImpl(Instance inst) {
     	
     	this.numberInstances++;
+    	
+    	countForBudget();
+    	this.modelCountSum += this.currentModels;
         boolean prediction = getPrediction(inst);
 
         this.driftDetectionMethod.input(prediction ? 0.0 : 1.0);
-    	
+        handleDetectorLevel(inst);
+        invalidateVotes();
+    }
+    
+    //act on the drift detector's state after it has seen inst
+    private void handleDetectorLevel(Instance inst){
         this.ddmLevel = DDM_INCONTROL_LEVEL;
         if (this.driftDetectionMethod.getChange()) {
             this.ddmLevel = DDM_OUTCONTROL_LEVEL;
@@ -144,12 +175,15 @@ public class ECPF extends AbstractCPF implements MultiClassClassifier, Capabilit
             case DDM_WARNING_LEVEL:
             	if(this.ddmLevel != this.ddmPriorLevel){
             		this.warningDetected++;
-            		buffer.delete();
+            		buffer.clear();
+            		emit(CPFEvent.Type.WARNING, currentClassifier, -1, 0, 0);
             	}
-                buffer.add(inst);
+                addToBuffer(buffer, inst);
+                testShadow(inst);
                 break;
             case DDM_OUTCONTROL_LEVEL:
-            	buffer.add(inst);
+            	addToBuffer(buffer, inst);
+            	testShadow(inst);
                 this.changeDetected++;
                 numDrifts++;
                 modelReuses++;
@@ -163,22 +197,60 @@ public class ECPF extends AbstractCPF implements MultiClassClassifier, Capabilit
                 break;
             	
             default:
-            	System.out.println("ERROR!");
 
         }
         ddmPriorLevel = ddmLevel;
     }
     
+    //Same steps as trainOnInstance, with the detector held in a local while in control
+    @Override
+    int trainBatchImpl(Instance[] batch, int from, int to){
+    	ChangeDetector detector = this.driftDetectionMethod;
+    	for(int i = from; i < to; i++){
+    		Instance inst = batch[i];
+    		if(!acceptForTraining(inst)) continue;
+    		this.numberInstances++;
+    		countForBudget();
+    		this.modelCountSum += this.currentModels;
+    		boolean prediction = getPrediction(inst);
+    		detector.input(prediction ? 0.0 : 1.0);
+    		if(detector.getChange() || detector.getWarningZone()){
+    			handleDetectorLevel(inst);
+    			invalidateVotes();
+    			return i + 1;
+    		}
+    		trainClassifiers(inst);
+    		invalidateVotes();
+    		this.ddmLevel = DDM_INCONTROL_LEVEL;
+    		this.ddmPriorLevel = DDM_INCONTROL_LEVEL;
+    	}
+    	return to;
+    }
+    
     private boolean getPrediction(Instance inst){
     	
     	int trueClass = (int) inst.classValue();
+    	if(pipelined()){
+    		//the worker tests newModel, only the current model is tested here
+    		ShadowTrainer shadow = shadow();
+        	boolean currPred = Utils.maxIndex(cachedVotes(classifierCollection.get(currentClassifier), inst)) == trueClass;
+        	if (currPred)currCorrect++;
+        	totalInst++;
+        	recordCurrCorrect();
+        	//the same instances as inline, the deterministic mode waits for the worker, see compareClassifiers
+        	if(totalInst % modelCheckFreq == 0){
+        		shadow.test(inst);
+        		shadowTested = true;
+        		compareClassifiers();
+        	}
+        	return currPred;
+    	}
+    	
     	if(newModel != null){
-    		boolean newPred = Utils.maxIndex(newModel
-                    .getVotesForInstance(inst)) == trueClass;
+    		boolean newPred = Utils.maxIndex(cachedVotes(newModel, inst)) == trueClass;
     		if(newPred) newCorrect ++;
     	}
-    	boolean currPred = Utils.maxIndex(classifierCollection.get(currentClassifier)
-                .getVotesForInstance(inst)) == trueClass;
+    	boolean currPred = Utils.maxIndex(cachedVotes(classifierCollection.get(currentClassifier), inst)) == trueClass;
     	if (currPred)currCorrect++;
     	totalInst++;
     	
@@ -190,11 +262,73 @@ public class ECPF extends AbstractCPF implements MultiClassClassifier, Capabilit
     
     private void trainClassifiers(Instance inst){
     	((Classifier)this.classifierCollection.get(currentClassifier)).trainOnInstance(inst);
-    	if(newModel != null) newModel.trainOnInstance(inst);
+    	if(pipelined()){
+    		if(shadowTested) shadow().train(inst);
+    		else shadow().testAndTrain(inst);
+    		shadowTested = false;
+    	} else if(newModel != null) newModel.trainOnInstance(inst);
+    }
+    
+    //give the worker the current instance to test when it will not be trained on
+    private void testShadow(Instance inst){
+    	if(pipelined() && !shadowTested) shadow().test(inst);
+    	shadowTested = false;
+    }
+    
+    private boolean pipelined(){
+    	return newModel != null && shadowTrainingOption.getChosenIndex() != 0;
+    }
+    
+    private ShadowTrainer shadow(){
+    	if(shadow == null){
+    		shadow = new ShadowTrainer(shadowQueueSizeOption.getValue());
+    		shadow.setModel(newModel, newCorrect, totalInst);
+    	}
+    	return shadow;
+    }
+    
+    //wait for the worker so newModel and newCorrect can be used on this thread
+    void drainShadow(){
+    	if(shadow == null) return;
+    	shadow.drain();
+    	newCorrect = shadow.getCorrect();
+    }
+    
+    //a closed trainer takes no more work, the next pipelined instance starts a new one
+    private void closeShadow(){
+    	if(shadow == null) return;
+    	shadow.close();
+    	shadow = null;
+    	shadowTested = false;
+    }
+    
+    //also stops the contending model's worker, copies never share it as it is not serialized
+    @Override
+    public void close(){
+    	closeShadow();
+    	super.close();
+    }
+    
+    private void recordCurrCorrect(){
+    	int length = shadow().capacity() + 8;
+    	if(currCorrectHistory == null || currCorrectHistory.length != length)
+    		currCorrectHistory = new int[length];
+    	currCorrectHistory[totalInst % length] = currCorrect;
     }
     
     private void compareClassifiers(){
-    	if(currCorrect  < newCorrect){
+    	if(pipelined()){
+    		//only wait for the worker once it is ahead on the instances both models have been tested on
+    		if(shadowTrainingOption.getChosenIndex() == SHADOW_PIPELINED && ddmLevel != DDM_OUTCONTROL_LEVEL){
+    			long progress = shadow().getProgress();
+    			int predicted = (int) (progress >>> 32);
+    			int currCorrectThen = predicted == 0 || currCorrectHistory == null ? 0
+    					: currCorrectHistory[predicted % currCorrectHistory.length];
+    			if(currCorrectThen >= (int) progress) return;
+    		}
+    		drainShadow();
+    	}
+    	if(newModel != null && currCorrect < newCorrect){
     		int tempCorrect = currCorrect;
     		currCorrect = newCorrect;
     		Classifier temp = classifierCollection.get(currentClassifier);
@@ -202,98 +336,127 @@ public class ECPF extends AbstractCPF implements MultiClassClassifier, Capabilit
     		newModel = temp;
     		newCorrect = tempCorrect;
     		reuseFlag = reuseFlag * -1;
+    		if(shadow != null){
+    			shadow.setModel(newModel, newCorrect, totalInst);
+    			recordCurrCorrect();
+    		}
     	}
     }
     
-    private void getNextModel(){
+    void getNextModel(){
+    	drainShadow();
     	
     	//Update accuracy measurements with winning model
         this.modelAccuracyMeasurements.get(currentClassifier)[0] = this.modelAccuracyMeasurements.get(currentClassifier)[0] + totalInst;
         this.modelAccuracyMeasurements.get(currentClassifier)[1] = this.modelAccuracyMeasurements.get(currentClassifier)[1] + currCorrect;
     	
+    	long driftStart = System.nanoTime();
     	this.ddmLevel =  DDM_OUTCONTROL_LEVEL;
     	totalBufferInstances += buffer.size();
     	currentClassifier = null;
     	
-    	//get results per model on this comparison window
-    	ArrayList<BitSet> thisBufferResults = new ArrayList<BitSet>();
+    	//get indices of current models, oldest first
+    	ArrayList<Integer> currentModels = classifierCollection.liveModels();
     	
-    	//get indices of current models
-    	ArrayList<Integer> currentModels = new ArrayList<Integer>();
-    	for(int i = 0; i < classifierCollection.size(); i++){
-    		if(!(classifierCollection.get(i) == null))
-    			currentModels.add(i);
-    	}
-
-    	for(int i = 0; i < currentModels.size(); i++){
-    		thisBufferResults.add(new BitSet(buffer.size()));
-        	
-    		for(int j = 0; j < buffer.size(); j++){
-    			if (!((Classifier) classifierCollection.get(currentModels.get(i))).correctlyClassifies(buffer.get(j)))
-    				thisBufferResults.get(i).set(j);
-    		}
+    	//get results per model on this comparison window
+    	//with early termination each model's {instances tested, errors} is kept as it may only have been tested on part of the buffer
+    	long phaseStart = System.nanoTime();
+    	boolean earlyTermination = earlyTerminationOption.isSet();
+    	long[][] errorMasks;
+    	ArrayList<int[]> testedCounts = null;
+    	if(earlyTermination){
+    		errorMasks = new long[currentModels.size()][];
+    		testedCounts = evaluateWithBound(currentModels, errorMasks);
+    	} else {
+    		errorMasks = evaluateModelsOnBuffer(classifierCollection, currentModels, buffer);
     	}
+    	phaseStart = bufferEvaluationLatency.since(phaseStart);
 	    
-    	for(int i = 0; i < currentModels.size(); i++){
-    		for(int j = i + 1; j > i & j < currentModels.size(); j++){
-    			
-    			//ensure comparison tracking values have been initialised
-    			if(modelComparisonMeasurements.get(currentModels.get(i)).get(currentModels.get(j)) == null)
-    				modelComparisonMeasurements.get(currentModels.get(i)).put(currentModels.get(j), 
-    						new Integer[]{0,0});
-    			    			
-    			BitSet difference = (BitSet) thisBufferResults.get(j).clone();
-    			difference.xor(thisBufferResults.get(i)); 			
-    			int seen_before = modelComparisonMeasurements.get(currentModels.get(i)).get(currentModels.get(j))[0];
-    			int agreed_before = modelComparisonMeasurements.get(currentModels.get(i)).get(currentModels.get(j))[1];
-    			int seen_this_buffer = buffer.size();
-    			int agreed_this_buffer = buffer.size() - difference.cardinality();
-    			
-    			modelComparisonMeasurements.get(currentModels.get(i)).get(currentModels.get(j))[0] = seen_before + seen_this_buffer;
-    			modelComparisonMeasurements.get(currentModels.get(i)).get(currentModels.get(j))[1] = agreed_before + agreed_this_buffer;
+    	if(earlyTermination){
+    		//models tested on part of the buffer are compared on the instances both were tested on,
+    		//which can merge different models than a full evaluation would
+    		for(int j = 1; j < currentModels.size(); j++){
+    			for(int i = 0; i < j; i++){
+    				int seen_this_buffer = Math.min(testedCounts.get(i)[0], testedCounts.get(j)[0]);
+    				if(seen_this_buffer == 0) continue;
+    				int agreed_this_buffer = seen_this_buffer - AgreementKernel.disagreements(errorMasks[i], errorMasks[j], seen_this_buffer);
+    				modelComparisonMeasurements.add(currentModels.get(i), currentModels.get(j), seen_this_buffer, agreed_this_buffer);
+    			}
     		}
+    	} else {
+	    	//disagreements for all pairs are counted in one pass over the error masks
+	    	int[] disagreements = pairwiseDisagreements(errorMasks, currentModels.size());
+	    	int pair = 0;
+	    	for(int j = 1; j < currentModels.size(); j++){
+	    		for(int i = 0; i < j; i++){
+	    			int seen_this_buffer = buffer.size();
+	    			int agreed_this_buffer = buffer.size() - disagreements[pair++];
+	    			
+	    			modelComparisonMeasurements.add(currentModels.get(i), currentModels.get(j), seen_this_buffer, agreed_this_buffer);
+	    		}
+	    	}
     	}
+    	phaseStart = pairwiseComparisonLatency.since(phaseStart);
     	
     	//Merge similar models and simplify model results
-    	
+    	ArrayList<long[]> thisBufferResults = new ArrayList<long[]>(Arrays.asList(errorMasks));
     	ArrayList<Integer> mergedModels = mergeModels(currentModels);
     	for(int i = 0; i < mergedModels.size(); i++){
     		int thisIndex = currentModels.indexOf(mergedModels.get(i));
     		currentModels.remove(thisIndex);
-    		thisBufferResults.remove(thisIndex);    		
+    		thisBufferResults.remove(thisIndex);
+    		if(earlyTermination) testedCounts.remove(thisIndex);
     	}
+    	phaseStart = mergeLatency.since(phaseStart);
     	
 		//add a new model to contend with existing models
     	//train it on even instances in buffer
 		newModel = ((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy();
 		newModel.prepareForUse();
-		BitSet newModelResults = new BitSet(buffer.size());
+		newClassifiersCreated++;
 		
 		//Here we have a double buffer and will initialise a new model on all warning zone instances
 		//train new model
 		for(int i = 0; i < buffer.size(); i++){
 			newModel.trainOnInstance(buffer.get(i));
 		}
+		emit(CPFEvent.Type.NEW_MODEL, -1, -1, buffer.size(), newModelLatency.since(phaseStart) - phaseStart);
+		if(shadow != null) shadow.setModel(newModel, 0, 0);
+		shadowTested = false;
 		
     	//check older models to find best accuracy on buffer
-    	double[] modelAccuracy = new double[thisBufferResults.size()];
     	int bestModelIndex = 0;
-    	double maxAcc = 0;
-		for(int i = 0; i < thisBufferResults.size(); i++){
-    		modelAccuracy[i] = (double)(thisBufferResults.get(i).size() - thisBufferResults.get(i).cardinality())
-    				/(double)(thisBufferResults.get(i).size());
-    		if (modelAccuracy[i] > maxAcc){
-    			bestModelIndex = i;
-    			maxAcc = modelAccuracy[i];
-    		}
+    	if(earlyTermination){
+    		bestModelIndex = bestWithBound(currentModels, thisBufferResults, testedCounts);
+    	} else {
+	    	double[] modelAccuracy = new double[thisBufferResults.size()];
+	    	double maxAcc = 0;
+			for(int i = 0; i < thisBufferResults.size(); i++){
+	    		modelAccuracy[i] = (double)(buffer.size() - AgreementKernel.cardinality(thisBufferResults.get(i)))
+	    				/(double)(buffer.size());
+	    		if (modelAccuracy[i] > maxAcc){
+	    			bestModelIndex = i;
+	    			maxAcc = modelAccuracy[i];
+	    		}
+	    	}
     	}
 
-		//Make copy of existing model to use
-		addModel(classifierCollection.get(currentModels.get(bestModelIndex)).copy());
+		//Make copy of existing model to use, taken when it is first trained
+		addModel(new CopyOnWriteClassifier(classifierCollection.get(currentModels.get(bestModelIndex))));
+		//the stored model is what was recalled, so LRU and LFU must count the use for it and not only for its copy
+		if(modelBudget != null) modelBudget.recordUse(currentModels.get(bestModelIndex), numDrifts);
+		emit(CPFEvent.Type.REUSE, currentModels.get(bestModelIndex), currentClassifier, buffer.size(), 0);
 		currentModels.add(currentClassifier);
 		
-    	if (this.fadeModels) fadeModels(currentModels);
-    	buffer.delete();
+    	if (this.fadeModels){
+    		phaseStart = System.nanoTime();
+    		fadeModels();
+    		fadeLatency.since(phaseStart);
+    	}
+    	enforceMemoryBudget(classifierCollection, currentClassifier);
+    	compactModels();
+    	emit(CPFEvent.Type.DRIFT, currentClassifier, -1, buffer.size(), System.nanoTime() - driftStart);
+    	buffer.clear();
     	
     	this.maxModels = Math.max(this.currentModels, this.maxModels);
     	//System.out.println("Model selected: " + currentClassifier);
@@ -305,70 +468,150 @@ public class ECPF extends AbstractCPF implements MultiClassClassifier, Capabilit
     	reuseFlag = 1;
     }
 
+    //Branch and bound over the buffer. A model is only tested until it has made as many errors as the best fully
+    //tested model so far, as it can then at best tie with an older model and ties go to the older model
+    private ArrayList<int[]> evaluateWithBound(ArrayList<Integer> models, long[][] masks){
+    	ArrayList<int[]> counts = new ArrayList<int[]>();
+    	Instance[] instances = buffer.views();
+    	int best = Integer.MAX_VALUE;
+    	for(int i = 0; i < models.size(); i++){
+    		masks[i] = AgreementKernel.newMask(buffer.size());
+    		int[] tested = new int[2];
+    		counts.add(tested);
+    		testUntil(models.get(i), instances, masks[i], tested, best);
+    		if(tested[0] == buffer.size() && tested[1] < best) best = tested[1];
+    	}
+    	return counts;
+    }
+    
+    //The index of the model with fewest errors on the buffer, the oldest on ties, as testing every model left after
+    //merging would find. Models stopped early are tested further whenever merging removed the model that bounded them.
+    //The merges themselves use agreement on tested prefixes, so the models left can differ from a full evaluation
+    private int bestWithBound(ArrayList<Integer> models, ArrayList<long[]> masks, ArrayList<int[]> counts){
+    	int size = buffer.size();
+    	Instance[] instances = buffer.views();
+    	while(true){
+    		int best = -1;
+    		for(int i = 0; i < models.size(); i++)
+    			if(counts.get(i)[0] == size && (best < 0 || counts.get(i)[1] < counts.get(best)[1])) best = i;
+    		int resume = -1;
+    		for(int i = 0; i < models.size() && resume < 0; i++){
+    			int[] tested = counts.get(i);
+    			if(tested[0] == size) continue;
+    			if(best < 0 || tested[1] < counts.get(best)[1] || (tested[1] == counts.get(best)[1] && i < best)) resume = i;
+    		}
+    		if(resume < 0){
+    			for(int[] tested : counts)
+    				bufferTestsSkipped += size - tested[0];
+    			return best;
+    		}
+    		//an older model still wins a tie, so it is only out of contention with more errors
+    		int bound = best < 0 ? Integer.MAX_VALUE : counts.get(best)[1] + (resume < best ? 1 : 0);
+    		testUntil(models.get(resume), instances, masks.get(resume), counts.get(resume), bound);
+    	}
+    }
+    
+    //continue testing a model from where it stopped until the end of the buffer or until it has made bound errors
+    private void testUntil(int slot, Instance[] instances, long[] mask, int[] tested, int bound){
+    	Classifier model = classifierCollection.get(slot);
+    	int size = buffer.size();
+    	int j = tested[0];
+    	int errors = tested[1];
+    	while(j < size && errors < bound){
+    		if(!model.correctlyClassifies(instances[j])){
+    			AgreementKernel.set(mask, j);
+    			errors++;
+    		}
+    		j++;
+    	}
+    	bufferTests += j - tested[0];
+    	tested[0] = j;
+    	tested[1] = errors;
+    }
+    
     //If a model acts the same way as another model similarityMargin proportion of the time, 
     //keep the model with higher accuracy. The kept model gets fade points
-	private ArrayList<Integer> mergeModels(ArrayList<Integer> currentModels){
+	ArrayList<Integer> mergeModels(ArrayList<Integer> currentModels){
 		int modelToRemove;
 		int modelToKeep;
+		MergeGroups groups = mergeGroups();
 		ArrayList<Integer> removedModels = new ArrayList<Integer>();
-		for(int i = 0; i < currentModels.size(); i++){
-			int modelA = currentModels.get(i);
-			if(classifierCollection.get(modelA) == null) continue;
-			for(int j = i + 1; j < currentModels.size(); j++){
-				int modelB = currentModels.get(j);
-				if(classifierCollection.get(modelB) == null) continue;
-				if((double)(modelComparisonMeasurements.get(modelA).get(modelB)[1])/(double)(modelComparisonMeasurements.get(modelA).get(modelB)[0]) >= similarityMargin){
-					modelMerges++;
-					if((double)modelAccuracyMeasurements.get(modelA)[1]/(double)modelAccuracyMeasurements.get(modelA)[0] >=
-						(double)modelAccuracyMeasurements.get(modelB)[1]/(double)modelAccuracyMeasurements.get(modelB)[0]){
-						modelToRemove = modelB;
-						modelToKeep = modelA;
-					} else {
-						modelToRemove = modelA;
-						modelToKeep = modelB;
-					}
-					removeModel(modelToRemove);
-					removedModels.add(modelToRemove);
-					if(fadeModels){
-						modelFadeScores.put(modelToKeep, modelFadeScores.get(modelToKeep) + ((modelFadeScores.get(modelToRemove) == null) ? 0 : modelFadeScores.get(modelToRemove)));
-						modelFadeScores.put(modelToRemove, null);
-					}
-					if(modelToRemove == currentModels.get(i)){ 
-						i++;
-						break;
-					}
+		//only pairs whose agreement changed since the last drift are checked, once a model is removed its later pairs are skipped
+		for(long pair : changedPairs(modelComparisonMeasurements, currentModels)){
+			int modelA = currentModels.get((int) (pair >>> 32));
+			int modelB = currentModels.get((int) pair);
+			if(!classifierCollection.contains(modelA) || !classifierCollection.contains(modelB)) continue;
+			if(modelComparisonMeasurements.agreement(modelA, modelB) >= similarityMargin){
+				modelMerges++;
+				if((double)modelAccuracyMeasurements.get(modelA)[1]/(double)modelAccuracyMeasurements.get(modelA)[0] >=
+					(double)modelAccuracyMeasurements.get(modelB)[1]/(double)modelAccuracyMeasurements.get(modelB)[0]){
+					modelToRemove = modelB;
+					modelToKeep = modelA;
+				} else {
+					modelToRemove = modelA;
+					modelToKeep = modelB;
 				}
+				removeModel(modelToRemove);
+				removedModels.add(modelToRemove);
+				emit(CPFEvent.Type.MERGE, modelToKeep, modelToRemove, buffer.size(), 0);
+				groups.union(modelToRemove, modelToKeep);
 			}
 		}
+		
+		//a kept model can be merged away in turn, its group's fade scores go to the model that finally survives
+		if(fadeModels){
+			for(int slot : removedModels)
+				fadeSchedule.merge(groups.find(slot), slot);
+		}
+		groups.reset();
 		return removedModels;
 	}
 	
 	private void removeModel(int modelToRemove){
 		this.currentModels = this.currentModels - 1;
 		classifierCollection.set(modelToRemove, null);
-		modelComparisonMeasurements.set(modelToRemove,null);
+		modelComparisonMeasurements.clearRow(modelToRemove);
 		modelAccuracyMeasurements.set(modelToRemove,null);
+		if(modelBudget != null) modelBudget.remove(modelToRemove);
 	}
 	
-	private void fadeModels(ArrayList<Integer> currentModels){
-		int score_to_add = fadePoints;
-    	for(int i:currentModels){
-    		if (i == currentClassifier){
-    			modelFadeScores.put(currentClassifier, score_to_add 
-    				+ ((modelFadeScores.get(currentClassifier) == null) ? 0 : modelFadeScores.get(currentClassifier))); //handles if model is new and not yet in modelFadeScores
-    		} else if (modelFadeScores.get(i) != null){ // null is case where model has been merged
-    			modelFadeScores.put(i, modelFadeScores.get(i) - 1);
-    			if(modelFadeScores.get(i) == 0){
-    				removeModel(i);
-    				this.modelsFaded++;
-    			}
-    		}
-    	}
+	@Override
+	void remapModels(int[] remap, int numSlots){
+		super.remapModels(remap, numSlots);
+		this.currentClassifier = remap[currentClassifier];
+		modelComparisonMeasurements.remap(remap, numSlots);
+		fadeSchedule.remap(remap, numSlots);
+		ArrayList<Integer[]> accuracy = new ArrayList<Integer[]>(Arrays.asList(new Integer[numSlots][]));
+		for(int old = 0; old < Math.min(modelAccuracyMeasurements.size(), remap.length); old++)
+			if(remap[old] >= 0) accuracy.set(remap[old], modelAccuracyMeasurements.get(old));
+		modelAccuracyMeasurements = accuracy;
+	}
+	
+	@Override
+	void evictModel(int slot){
+		removeModel(slot);
+		if(fadeModels) fadeSchedule.remove(slot);
+	}
+	
+	@Override
+	int fadeScore(int slot){
+		return fadeSchedule.score(slot);
+	}
+	
+	//the selected model gains fadePoints and every other model loses a point, models reaching 0 are removed
+	void fadeModels(){
+		for(int slot : fadeSchedule.advance(currentClassifier, fadePoints)){
+			removeModel(slot);
+			this.modelsFaded++;
+			emit(CPFEvent.Type.FADE, slot, -1, buffer.size(), 0);
+		}
 	}
 
 	@Override
     public double[] getVotesForInstance(Instance inst) {
-        return this.classifierCollection.get(currentClassifier).getVotesForInstance(inst);
+        //votes are only shared with the training step that may follow, never with an earlier prediction
+        invalidateVotes();
+        return cachedVotes(this.classifierCollection.get(currentClassifier), inst).clone();
     }
 	
 	public boolean getWarning(){
@@ -383,7 +626,49 @@ public class ECPF extends AbstractCPF implements MultiClassClassifier, Capabilit
 	}
 	
 	public void clearBuffer(){
-		this.buffer = null;
+		this.buffer.release();
+	}
+
+	//newModel is owned by the worker until it has caught up. It is trained on every instance, so a checkpoint
+	//would rewrite it in full each time, and it is only a provisional model, so checkpoints leave it out
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		if(shadow != null) drainShadow();
+		out.defaultWriteObject();
+		out.writeObject(classifierCollection.externalize ? null : newModel);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		try {
+			newModel = (Classifier) in.readObject();
+		} catch (OptionalDataException e) {
+			//written before newModel was written separately, by a version 2 checkpoint which held it inline
+			newModel = null;
+		}
+		if(newModel == null) newCorrect = 0;
+	}
+
+	@Override
+	void migrateCheckpoint(int version){
+		if(version < 3){
+			modelComparisonMeasurements.markAllCompared();
+			buffer.added = buffer.size();
+		}
+	}
+
+	@Override
+	ModelRepository modelRepository(){
+		return this.classifierCollection;
+	}
+
+	@Override
+	Classifier activeModel(){
+		return currentClassifier == null ? null : this.classifierCollection.get(currentClassifier);
+	}
+
+	@Override
+	int activeSlot(){
+		return currentClassifier == null ? -1 : currentClassifier;
 	}
 
 	@Override
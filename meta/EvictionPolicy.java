@@ -0,0 +1,68 @@
+/*
+ * EvictionPolicy.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+
+/**
+ * Decides which stored model goes first when a CPF or ECPF learner is over its
+ * memory budget. The live model with the highest score is evicted, ties go to
+ * the oldest model. The current model is never evicted.
+ */
+public interface EvictionPolicy extends Serializable {
+
+	double evictionScore(int slot, ModelBudget budget, int fadeScore);
+
+	//least recently selected first
+	EvictionPolicy LRU = new EvictionPolicy(){
+		private static final long serialVersionUID = 1L;
+		@Override
+		public double evictionScore(int slot, ModelBudget budget, int fadeScore){
+			return -budget.getLastUsed(slot);
+		}
+	};
+
+	//least often selected first
+	EvictionPolicy LFU = new EvictionPolicy(){
+		private static final long serialVersionUID = 1L;
+		@Override
+		public double evictionScore(int slot, ModelBudget budget, int fadeScore){
+			return -budget.getUses(slot);
+		}
+	};
+
+	//largest first
+	EvictionPolicy SIZE = new EvictionPolicy(){
+		private static final long serialVersionUID = 1L;
+		@Override
+		public double evictionScore(int slot, ModelBudget budget, int fadeScore){
+			return budget.getBytes(slot);
+		}
+	};
+
+	//closest to fading out first
+	EvictionPolicy FADE = new EvictionPolicy(){
+		private static final long serialVersionUID = 1L;
+		@Override
+		public double evictionScore(int slot, ModelBudget budget, int fadeScore){
+			return -fadeScore;
+		}
+	};
+}
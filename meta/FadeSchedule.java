@@ -0,0 +1,178 @@
+/*
+ * FadeSchedule.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Fade scores of model slots, stored as the fade pass at which each score
+ * reaches 0. Every pass all scored models but the selected one lose a point,
+ * so the score of a slot is its expiry minus the number of passes so far and
+ * only the selected model's expiry changes. Expiries are kept in a min-heap
+ * that is cleaned lazily, so a pass only looks at the models that expire.
+ *
+ * A model whose score is already 0 or below when a pass starts, which is how
+ * a fadePoints of 0 keeps models, goes negative and never expires, as with
+ * the decrementing scores this replaces.
+ */
+public class FadeSchedule implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final long NONE = Long.MIN_VALUE;
+
+	long epoch = 0;
+	//pass at which each slot's score reaches 0, NONE for slots without a score
+	long[] expiry = new long[0];
+
+	//min-heap of (expiry, slot), entries whose expiry has since changed are skipped when popped
+	long[] heapExpiry = new long[16];
+	int[] heapSlot = new int[16];
+	int heapSize = 0;
+
+	//a new model starts with a score of 0
+	public void start(int slot){
+		set(slot, epoch);
+	}
+
+	public boolean has(int slot){
+		return slot < expiry.length && expiry[slot] != NONE;
+	}
+
+	public int score(int slot){
+		return has(slot) ? (int) (expiry[slot] - epoch) : 0;
+	}
+
+	public void remove(int slot){
+		if(slot < expiry.length) expiry[slot] = NONE;
+	}
+
+	//the kept model of a merge gets the score of the removed one as well
+	public void merge(int keep, int removed){
+		set(keep, epoch + score(keep) + score(removed));
+		remove(removed);
+	}
+
+	/**
+	 * One fade pass, at the end of drift handling. The selected model gains
+	 * fadePoints and every other scored model loses a point. Returns the models
+	 * whose score reached 0, which no longer have a score.
+	 */
+	public ArrayList<Integer> advance(int selected, int fadePoints){
+		long previous = epoch;
+		epoch++;
+		//not decrementing the selected model moves its expiry back by one pass on top of its reward
+		set(selected, (has(selected) ? expiry[selected] : previous) + fadePoints + 1);
+
+		ArrayList<Integer> expired = new ArrayList<Integer>();
+		while(heapSize > 0 && heapExpiry[0] <= epoch){
+			long due = heapExpiry[0];
+			int slot = heapSlot[0];
+			pop();
+			if(slot == selected || slot >= expiry.length || expiry[slot] != due) continue;
+			//an earlier expiry was already at or below 0 before this pass and never expires
+			if(due == epoch){
+				expired.add(slot);
+				expiry[slot] = NONE;
+			}
+		}
+		return expired;
+	}
+
+	//move scores to the slots given by remap after the models were compacted
+	public void remap(int[] remap, int numSlots){
+		long[] moved = new long[numSlots];
+		Arrays.fill(moved, NONE);
+		for(int old = 0; old < Math.min(expiry.length, remap.length); old++)
+			if(remap[old] >= 0) moved[remap[old]] = expiry[old];
+		expiry = moved;
+		rebuildHeap();
+	}
+
+	public void clear(){
+		epoch = 0;
+		expiry = new long[0];
+		heapSize = 0;
+	}
+
+	private void set(int slot, long due){
+		if(slot >= expiry.length){
+			int from = expiry.length;
+			expiry = Arrays.copyOf(expiry, Math.max(slot + 1, 2 * expiry.length));
+			Arrays.fill(expiry, from, expiry.length, NONE);
+		}
+		expiry[slot] = due;
+		//every change leaves a stale entry behind, start again from the live expiries once they dominate
+		if(heapSize >= 2 * expiry.length + 16) rebuildHeap();
+		else push(due, slot);
+	}
+
+	private void rebuildHeap(){
+		heapSize = 0;
+		for(int slot = 0; slot < expiry.length; slot++)
+			if(expiry[slot] != NONE && expiry[slot] >= epoch) push(expiry[slot], slot);
+	}
+
+	private boolean less(int a, int b){
+		return heapExpiry[a] < heapExpiry[b] || (heapExpiry[a] == heapExpiry[b] && heapSlot[a] < heapSlot[b]);
+	}
+
+	private void swap(int a, int b){
+		long e = heapExpiry[a];
+		heapExpiry[a] = heapExpiry[b];
+		heapExpiry[b] = e;
+		int s = heapSlot[a];
+		heapSlot[a] = heapSlot[b];
+		heapSlot[b] = s;
+	}
+
+	private void push(long due, int slot){
+		if(heapSize == heapExpiry.length){
+			heapExpiry = Arrays.copyOf(heapExpiry, 2 * heapSize);
+			heapSlot = Arrays.copyOf(heapSlot, 2 * heapSize);
+		}
+		int i = heapSize++;
+		heapExpiry[i] = due;
+		heapSlot[i] = slot;
+		while(i > 0 && less(i, (i - 1) / 2)){
+			swap(i, (i - 1) / 2);
+			i = (i - 1) / 2;
+		}
+	}
+
+	private void pop(){
+		heapSize--;
+		if(heapSize == 0) return;
+		heapExpiry[0] = heapExpiry[heapSize];
+		heapSlot[0] = heapSlot[heapSize];
+		int i = 0;
+		while(true){
+			int smallest = i;
+			int left = 2 * i + 1, right = left + 1;
+			if(left < heapSize && less(left, smallest)) smallest = left;
+			if(right < heapSize && less(right, smallest)) smallest = right;
+			if(smallest == i) return;
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * FingerprintIndex.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+import moa.core.Utils;
+
+/**
+ * Bit signatures of stored models' behaviour, used to shortlist the models
+ * worth testing on a drift buffer. The first probeSize instances of the stream
+ * are kept as the probe set, and bit j of a signature is a random hash of
+ * the class a model predicts for probe j, so two models that disagree on a
+ * probe differ in that bit with probability at least one half. Signatures are
+ * compared by Hamming distance, which for a few hundred models is a handful of
+ * XORs and popcounts each.
+ *
+ * So that the probes follow the concepts the stream currently shows, half of
+ * them can be replaced by instances of a drift buffer once every few drifts.
+ * Bit j belongs to the probe held in slot j of the probe buffer, and each
+ * probe remembers the refresh that put it there, so a signature taken before
+ * a refresh is still compared on the probes it saw. Only its stale bits are
+ * predicted again, when the model is tested on a buffer anyway or once none
+ * of its bits are current.
+ */
+public class FingerprintIndex implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	//distances are fractions of the probes compared, in steps of 1/DISTANCE_SCALE
+	static final long DISTANCE_SCALE = 1 << 16;
+
+	final int probeSize;
+	final InstanceRingBuffer probes;
+	//signature of each repository slot, null where a model has none yet
+	long[][] signatures = new long[0][];
+	//the refresh each signature is current for, and the refresh each probe slot was filled at
+	long[] signedAt = new long[0];
+	long[] probeRefresh;
+
+	int driftsSinceRefresh = 0;
+	long refreshes = 0;
+
+	//drifts the index was consulted at, for sampling recall
+	long lookups = 0;
+	long searches = 0;
+	long recentReuses = 0;
+	long candidatesTested = 0;
+	long recallSamples = 0;
+	long recallHits = 0;
+
+	public FingerprintIndex(int probeSize){
+		this.probeSize = probeSize;
+		this.probes = new InstanceRingBuffer(probeSize);
+		this.probeRefresh = new long[probeSize];
+	}
+
+	//collect the probe set from the start of the stream, returns false once it is complete
+	public boolean addProbe(Instance inst){
+		if(probes.size() >= probeSize) return false;
+		probes.add(inst);
+		return true;
+	}
+
+	//signatures and probes of a checkpoint written before probes kept their refresh
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if(probeRefresh != null) return;
+		probeRefresh = new long[probeSize];
+		signedAt = new long[signatures.length];
+		//signatures were taken in probe order, which only matches the probe slots until the first refresh
+		if(probes.start != 0) signatures = new long[0][];
+	}
+
+	public boolean isReady(){
+		return probes.size() >= probeSize;
+	}
+
+	//at the end of every drift, replace up to half the probes, oldest first, with buffer instances once in every refreshEvery drifts
+	public void endDrift(InstanceRingBuffer buffer, int refreshEvery){
+		if(refreshEvery <= 0 || ++driftsSinceRefresh < refreshEvery || buffer.size() == 0) return;
+		driftsSinceRefresh = 0;
+		int count = Math.min(probeSize / 2, buffer.size());
+		refreshes++;
+		//spread over the buffer, which runs from the warning to the drift
+		for(int i = 0; i < count; i++)
+			probeRefresh[probes.add(buffer.get((int) ((long) i * buffer.size() / count)))] = refreshes;
+	}
+
+	public long getRefreshes(){
+		return refreshes;
+	}
+
+	public long[] signature(Classifier model){
+		return sign(model, AgreementKernel.newMask(probeSize), -1);
+	}
+
+	//set the bits of the probes filled after the given refresh, every bit for -1
+	private long[] sign(Classifier model, long[] signature, long refresh){
+		Instance[] instances = probes.views();
+		for(int i = 0; i < probeSize; i++){
+			int j = probes.physical(i);
+			if(probeRefresh[j] <= refresh) continue;
+			int predicted = Utils.maxIndex(model.getVotesForInstance(instances[i]));
+			if(hashBit(j, predicted)) AgreementKernel.set(signature, j);
+			else AgreementKernel.clear(signature, j);
+		}
+		return signature;
+	}
+
+	//recompute the signature of a model that has been trained
+	public void update(int slot, Classifier model){
+		if(!isReady()) return;
+		ensureSlots(slot);
+		signatures[slot] = signature(model);
+		signedAt[slot] = refreshes;
+	}
+
+	//bring a signature up to date with the probes by predicting only the probes replaced since it was taken
+	public void refresh(int slot, Classifier model){
+		if(!has(slot)){
+			update(slot, model);
+			return;
+		}
+		if(signedAt[slot] == refreshes) return;
+		sign(model, signatures[slot], signedAt[slot]);
+		signedAt[slot] = refreshes;
+	}
+
+	public void remove(int slot){
+		if(slot < signatures.length) signatures[slot] = null;
+	}
+
+	//move signatures to the slots given by remap after the models were compacted
+	public void remap(int[] remap, int numSlots){
+		long[][] moved = new long[numSlots][];
+		long[] movedAt = new long[numSlots];
+		for(int old = 0; old < Math.min(signatures.length, remap.length); old++){
+			if(remap[old] < 0) continue;
+			moved[remap[old]] = signatures[old];
+			movedAt[remap[old]] = signedAt[old];
+		}
+		signatures = moved;
+		signedAt = movedAt;
+	}
+
+	public boolean has(int slot){
+		return slot < signatures.length && signatures[slot] != null;
+	}
+
+	//whether a model's signature misses probes added by a refresh
+	public boolean isStale(int slot){
+		return has(slot) && signedAt[slot] != refreshes;
+	}
+
+	//whether a model has a signature sharing at least one probe with the current ones
+	public boolean isComparable(int slot){
+		return has(slot) && AgreementKernel.cardinality(currentProbes(slot)) > 0;
+	}
+
+	//the probes a signature was taken on, as a mask over probe slots
+	long[] currentProbes(int slot){
+		long[] mask = AgreementKernel.newMask(probeSize);
+		for(int j = 0; j < probeSize; j++)
+			if(probeRefresh[j] <= signedAt[slot]) AgreementKernel.set(mask, j);
+		return mask;
+	}
+
+	//whether to sample recall at this drift, one in every drifts the index is consulted at
+	boolean sampleRecall(int every){
+		return every > 0 && lookups++ % every == 0;
+	}
+
+	private void ensureSlots(int slot){
+		if(slot < signatures.length) return;
+		int length = Math.max(slot + 1, 2 * signatures.length);
+		signatures = Arrays.copyOf(signatures, length);
+		signedAt = Arrays.copyOf(signedAt, length);
+	}
+
+	/**
+	 * The models whose signatures are nearest to target, at most k of them,
+	 * together with every model that has no signature yet, or none on the
+	 * current probes. A stale signature is compared on the probes it was
+	 * taken on, by the fraction of them that differ. Returned in the order of
+	 * models, so older models still come first.
+	 */
+	public ArrayList<Integer> shortlist(ArrayList<Integer> models, long[] target, int k){
+		searches++;
+		int signed = 0;
+		long[] ranked = new long[models.size()];
+		//models that cannot be ranked are always candidates
+		boolean[] unranked = new boolean[models.size()];
+		for(int i = 0; i < models.size(); i++){
+			int slot = models.get(i);
+			long distance;
+			if(!has(slot)){
+				unranked[i] = true;
+				continue;
+			} else if(!isStale(slot)){
+				distance = (long) AgreementKernel.disagreements(signatures[slot], target) * DISTANCE_SCALE / probeSize;
+			} else {
+				long[] current = currentProbes(slot);
+				int compared = AgreementKernel.cardinality(current);
+				if(compared == 0){
+					unranked[i] = true;
+					continue;
+				}
+				distance = (long) AgreementKernel.maskedDisagreements(signatures[slot], target, current) * DISTANCE_SCALE / compared;
+			}
+			//distance in the high half and position in the low half, so sorting ranks by distance then age
+			ranked[signed++] = (distance << 32) | i;
+		}
+		Arrays.sort(ranked, 0, signed);
+		boolean[] nearest = new boolean[models.size()];
+		for(int r = 0; r < Math.min(k, signed); r++)
+			nearest[(int) ranked[r]] = true;
+		ArrayList<Integer> candidates = new ArrayList<Integer>();
+		for(int i = 0; i < models.size(); i++)
+			if(nearest[i] || unranked[i]) candidates.add(models.get(i));
+		candidatesTested += candidates.size();
+		return candidates;
+	}
+
+	//a drift reused one of the most recent models, so no provisional model was trained
+	void recordRecentReuse(){
+		recentReuses++;
+	}
+
+	public long getRecentReuses(){
+		return recentReuses;
+	}
+
+	void recordRecall(boolean hit){
+		recallSamples++;
+		if(hit) recallHits++;
+	}
+
+	//fraction of sampled drifts where the shortlist led to the same model as testing every model
+	public double getRecall(){
+		return recallSamples == 0 ? 1.0 : (double) recallHits / (double) recallSamples;
+	}
+
+	public long getRecallSamples(){
+		return recallSamples;
+	}
+
+	public double getMeanCandidates(){
+		return searches == 0 ? 0 : (double) candidatesTested / (double) searches;
+	}
+
+	private static boolean hashBit(int probe, int predicted){
+		long h = (probe * 0x9E3779B97F4A7C15L) ^ (predicted * 0xC2B2AE3D27D4EB4FL);
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (h & 1) != 0;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * InstanceRingBuffer.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+
+/**
+ * Bounded buffer of warning zone instances. Attribute values (including the
+ * class label) and weights are copied into preallocated primitive arrays, and
+ * once the buffer is full the oldest instance is overwritten. Index 0 is always
+ * the oldest instance held.
+ */
+public class InstanceRingBuffer implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	int capacity;
+	int numAttributes = -1;
+	Instances header;
+
+	double[] values;
+	double[] weights;
+	int start = 0;
+	int size = 0;
+	//instances added since the last clear, and the number of clears, so incremental scores can tell whether they are current
+	long added = 0;
+	long generation = 0;
+
+	//reusable instances handed out for model evaluation, refreshed from the arrays on request
+	transient Instance[] views;
+
+	public InstanceRingBuffer(int capacity){
+		this.capacity = Math.max(capacity, 1);
+	}
+
+	//change the maximum window, dropping held instances
+	public void setCapacity(int capacity){
+		capacity = Math.max(capacity, 1);
+		if(capacity != this.capacity){
+			this.capacity = capacity;
+			release();
+		}
+		clear();
+	}
+
+	public int capacity(){
+		return capacity;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	//add an instance and return the physical slot it was written to, an empty buffer takes the instance's schema
+	public int add(Instance inst){
+		if(values == null || inst.numAttributes() != numAttributes){
+			if(size > 0)
+				throw new IllegalArgumentException("Instance has " + inst.numAttributes() + " attributes but the buffered instances have " + numAttributes);
+			allocate(inst);
+		}
+		int slot;
+		if(size < capacity){
+			slot = start + size;
+			if(slot >= capacity) slot -= capacity;
+			size++;
+		} else {
+			slot = start;
+			start = (start + 1 == capacity) ? 0 : start + 1;
+		}
+		int offset = slot * numAttributes;
+		for(int a = 0; a < numAttributes; a++)
+			values[offset + a] = inst.value(a);
+		weights[slot] = inst.weight();
+		added++;
+		return slot;
+	}
+
+	//a new instance holding a copy of buffered instance i, safe to keep or train on
+	public Instance get(int i){
+		int offset = physical(i) * numAttributes;
+		double[] row = new double[numAttributes];
+		System.arraycopy(values, offset, row, 0, numAttributes);
+		Instance inst = new DenseInstance(weights[physical(i)], row);
+		inst.setDataset(header);
+		return inst;
+	}
+
+	/**
+	 * Views of the buffered instances in order, oldest first. The returned
+	 * instances are reused by the next call, so they must only be read (e.g.
+	 * by correctlyClassifies) and never kept by a model.
+	 */
+	public Instance[] views(){
+		if(views == null || views.length != capacity)
+			views = new Instance[capacity];
+		for(int i = 0; i < size; i++){
+			if(views[i] == null){
+				views[i] = new DenseInstance(1.0, new double[numAttributes]);
+				views[i].setDataset(header);
+			}
+			int slot = physical(i);
+			int offset = slot * numAttributes;
+			for(int a = 0; a < numAttributes; a++)
+				views[i].setValue(a, values[offset + a]);
+			views[i].setWeight(weights[slot]);
+		}
+		return views;
+	}
+
+	public void clear(){
+		start = 0;
+		size = 0;
+		added = 0;
+		generation++;
+	}
+
+	//drop the preallocated storage, it is allocated again on the next add
+	public void release(){
+		clear();
+		values = null;
+		weights = null;
+		views = null;
+		numAttributes = -1;
+	}
+
+	int physical(int i){
+		if(i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Buffer index " + i + " of " + size);
+		int slot = start + i;
+		return slot >= capacity ? slot - capacity : slot;
+	}
+
+	private void allocate(Instance inst){
+		numAttributes = inst.numAttributes();
+		header = inst.dataset();
+		values = new double[capacity * numAttributes];
+		weights = new double[capacity];
+		views = null;
+		clear();
+	}
+}
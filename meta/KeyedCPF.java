@@ -0,0 +1,231 @@
+/*
+ * KeyedCPF.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+import moa.classifiers.core.driftdetection.ChangeDetector;
+import moa.core.Utils;
+
+/**
+ * CPF for many streams at once, such as one stream per customer. Instances are
+ * routed by key to a small per-key state holding the key's drift detector and
+ * the id of its active concept. A key only holds a buffer, of bufferSize
+ * instances, from a warning until it has chosen its next concept or is back
+ * in control, so keys that are in control cost a detector each. The concept
+ * models live in one ConceptLibrary shared by every key and are trained in
+ * place, so a concept learnt on one stream is reused on any other without a
+ * copy.
+ *
+ * At a drift the key evaluates every stored concept on its buffer, then
+ * selects the oldest concept that classifies the buffer within
+ * similarityMargin, or trains a new concept on the buffer as CPF does, on the
+ * even instances and then the odd ones, recording its agreement with the
+ * others on the odd ones. Unlike CPF the buffer is the last bufferSize
+ * instances rather than up to maxBufferSize. The library merges, fades and
+ * evicts concepts with the prototype's settings. Different keys may be
+ * trained from different threads.
+ */
+public class KeyedCPF<K> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int INCONTROL = 0;
+	static final int WARNING = 1;
+	static final int OUTCONTROL = 2;
+	static final int BUILD_BUFFER = 3;
+
+	//per key state, a new key starts by filling its buffer so it can pick a concept straight away
+	static class KeyState implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		int concept = -1;
+		ChangeDetector detector;
+		//only held from a warning until the key is back in control or has chosen a concept
+		InstanceRingBuffer buffer;
+		int level = BUILD_BUFFER;
+		int priorLevel = INCONTROL;
+	}
+
+	final AbstractCPF prototype;
+	final ConceptLibrary library;
+	final ConcurrentHashMap<K, KeyState> keys = new ConcurrentHashMap<K, KeyState>();
+	final int bufferSize;
+
+	final AtomicLong drifts = new AtomicLong();
+	final AtomicLong reuses = new AtomicLong();
+	final AtomicLong newConcepts = new AtomicLong();
+
+	//take the base learner, drift detector, similarity margin and buffer sizes from a configured CPF
+	public KeyedCPF(CPF prototype){
+		this(prototype, new ConceptLibrary(prototype));
+	}
+
+	public KeyedCPF(CPF prototype, ConceptLibrary library){
+		prototype.prepareForUse();
+		this.prototype = prototype;
+		this.library = library;
+		this.bufferSize = prototype.bufferSizeOption.getValue();
+	}
+
+	//instances CPF would not train on, without weight or class, are skipped
+	public void trainOnInstance(K key, Instance inst){
+		if(!prototype.isTrainable(inst)) return;
+		KeyState state = state(key);
+		synchronized(state){
+			train(state, inst);
+		}
+	}
+
+	//votes of the key's active model, empty until the key has seen its first buffer
+	public double[] getVotesForInstance(K key, Instance inst){
+		KeyState state = keys.get(key);
+		if(state == null) return new double[0];
+		synchronized(state){
+			return state.concept < 0 ? new double[0] : library.votes(state.concept, inst);
+		}
+	}
+
+	//the concept in use by a key, -1 if it has not chosen one yet
+	public int getActiveConcept(K key){
+		KeyState state = keys.get(key);
+		return state == null ? -1 : state.concept;
+	}
+
+	public ConceptLibrary getLibrary(){
+		return library;
+	}
+
+	public int getNumKeys(){
+		return keys.size();
+	}
+
+	//forget a key, its concept stays in the library for other keys
+	public void removeKey(K key){
+		KeyState state = keys.remove(key);
+		if(state == null) return;
+		synchronized(state){
+			library.release(state.concept);
+			state.concept = -1;
+		}
+	}
+
+	public long getNumDrifts(){
+		return drifts.get();
+	}
+
+	public long getModelReuses(){
+		return reuses.get();
+	}
+
+	public long getNewConcepts(){
+		return newConcepts.get();
+	}
+
+	private KeyState state(K key){
+		KeyState state = keys.get(key);
+		if(state != null) return state;
+		state = new KeyState();
+		state.detector = prototype.newDriftDetector();
+		KeyState existing = keys.putIfAbsent(key, state);
+		return existing == null ? state : existing;
+	}
+
+	//same steps as CPF.trainOnInstanceImpl
+	private void train(KeyState state, Instance inst){
+		if(state.level == BUILD_BUFFER){
+			buffer(state).add(inst);
+			if(state.buffer.size() >= bufferSize) nextConcept(state);
+			return;
+		}
+
+		boolean prediction = Utils.maxIndex(library.votes(state.concept, inst)) == (int) inst.classValue();
+		state.detector.input(prediction ? 0.0 : 1.0);
+		state.level = INCONTROL;
+		if(state.detector.getChange()) state.level = OUTCONTROL;
+		if(state.detector.getWarningZone()) state.level = WARNING;
+
+		switch(state.level){
+			case WARNING:
+				if(state.level != state.priorLevel) buffer(state).clear();
+				buffer(state).add(inst);
+				break;
+			case OUTCONTROL:
+				buffer(state).add(inst);
+				drifts.incrementAndGet();
+				nextConcept(state);
+				break;
+			case INCONTROL:
+				//a warning that passed without a drift leaves nothing worth keeping
+				state.buffer = null;
+				library.train(state.concept, inst);
+				break;
+			default:
+		}
+		state.priorLevel = state.level;
+	}
+
+	//same selection as CPF.getNextModel, against the shared library
+	private void nextConcept(KeyState state){
+		if(buffer(state).size() < bufferSize){
+			state.level = BUILD_BUFFER;
+			return;
+		}
+
+		//every concept is evaluated, so the library sees how each pair agrees on the buffer
+		Classifier[] concepts = library.snapshot();
+		Instance[] instances = state.buffer.views();
+		int size = state.buffer.size();
+		long[][] errors = new long[concepts.length][];
+		for(int c = 0; c < concepts.length; c++)
+			if(concepts[c] != null) errors[c] = ConceptLibrary.errors(concepts[c], instances, size);
+
+		int chosen = library.select(state.concept, concepts, errors, size);
+		if(chosen >= 0){
+			reuses.incrementAndGet();
+		} else {
+			//trained on even instances and tested on each odd one before training on it, as in CPF.getNextModel
+			Classifier model = prototype.newBaseLearner();
+			long[] modelErrors = AgreementKernel.newMask(size);
+			for(int i = 0; i < size; i += 2)
+				model.trainOnInstance(state.buffer.get(i));
+			for(int i = 1; i < size; i += 2){
+				if(!model.correctlyClassifies(instances[i])) AgreementKernel.set(modelErrors, i);
+				model.trainOnInstance(state.buffer.get(i));
+			}
+			chosen = library.add(model, concepts, errors, modelErrors, size);
+			newConcepts.incrementAndGet();
+		}
+		state.concept = chosen;
+		state.level = OUTCONTROL;
+		state.buffer = null;
+	}
+
+	private InstanceRingBuffer buffer(KeyState state){
+		if(state.buffer == null) state.buffer = new InstanceRingBuffer(bufferSize);
+		return state.buffer;
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * LatencyHistogram.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Histogram of nanosecond latencies in log-linear buckets, as HdrHistogram
+ * keeps them: every power of two is split into SUB_BUCKETS equal buckets, and
+ * latencies below SUB_BUCKETS nanoseconds are counted exactly. Recording is a
+ * couple of array writes, and a percentile is the upper bound of its bucket,
+ * which overstates the true latency by at most 1/SUB_BUCKETS (about 3%).
+ */
+public class LatencyHistogram implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int SUB_BUCKET_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	//one group of sub-buckets for the exact values, then one per power of two up to 2^62
+	static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	final String name;
+	//checkpoints written before sub-buckets hold one bucket per power of two, which readObject converts
+	long[] buckets = new long[NUM_BUCKETS];
+	long count = 0;
+	long total = 0;
+	long max = 0;
+
+	public LatencyHistogram(String name){
+		this.name = name;
+	}
+
+	public void record(long nanos){
+		if(nanos < 0) nanos = 0;
+		buckets[bucket(nanos)]++;
+		count++;
+		total += nanos;
+		if(nanos > max) max = nanos;
+	}
+
+	//record the time since start and return the current time, so consecutive phases can be chained
+	public long since(long start){
+		long now = System.nanoTime();
+		record(now - start);
+		return now;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public long getCount(){
+		return count;
+	}
+
+	public long getTotalNanos(){
+		return total;
+	}
+
+	public double getMeanNanos(){
+		return count == 0 ? 0 : (double) total / (double) count;
+	}
+
+	public long getMaxNanos(){
+		return max;
+	}
+
+	//upper bound of the bucket holding the given quantile, capped at the largest latency seen
+	public long getPercentileNanos(double quantile){
+		if(count == 0) return 0;
+		long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for(int b = 0; b < buckets.length; b++){
+			seen += buckets[b];
+			if(seen >= rank && seen > 0)
+				return Math.min(max, upperBound(b));
+		}
+		return max;
+	}
+
+	static int bucket(long nanos){
+		if(nanos < SUB_BUCKETS) return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	//the largest latency counted in a bucket
+	static long upperBound(int bucket){
+		if(bucket < SUB_BUCKETS) return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	//counts of an older checkpoint's power-of-two buckets go in the bucket of that power's largest latency
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if(buckets.length == NUM_BUCKETS) return;
+		long[] powers = buckets;
+		buckets = new long[NUM_BUCKETS];
+		for(int b = 0; b < powers.length; b++)
+			buckets[bucket(b == 63 ? Long.MAX_VALUE : (2L << b) - 1)] += powers[b];
+	}
+
+	public void reset(){
+		Arrays.fill(buckets, 0);
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+}
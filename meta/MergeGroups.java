@@ -0,0 +1,72 @@
+/*
+ * MergeGroups.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.util.Arrays;
+
+/**
+ * Union-find over model slots for the merges of one drift. Each merge joins
+ * the removed model to the model that absorbed it, so find gives the model a
+ * slot ended up in even when that model was merged away in turn, as ECPF's
+ * accuracy rule allows. Only the slots touched since the last reset are
+ * restored, so a drift without merges costs nothing.
+ */
+public class MergeGroups {
+
+	int[] parent = new int[0];
+	int[] touched = new int[16];
+	int touchedCount = 0;
+
+	//forget the previous drift's merges
+	public void reset(){
+		for(int i = 0; i < touchedCount; i++)
+			parent[touched[i]] = touched[i];
+		touchedCount = 0;
+	}
+
+	public void union(int removed, int kept){
+		ensure(Math.max(removed, kept));
+		int root = find(removed);
+		parent[root] = find(kept);
+		if(touchedCount == touched.length) touched = Arrays.copyOf(touched, 2 * touchedCount);
+		touched[touchedCount++] = root;
+	}
+
+	public int find(int slot){
+		if(slot >= parent.length) return slot;
+		while(parent[slot] != slot){
+			parent[slot] = parent[parent[slot]];
+			slot = parent[slot];
+		}
+		return slot;
+	}
+
+	public boolean isEmpty(){
+		return touchedCount == 0;
+	}
+
+	private void ensure(int slot){
+		if(slot < parent.length) return;
+		int from = parent.length;
+		parent = Arrays.copyOf(parent, Math.max(slot + 1, 2 * parent.length));
+		for(int i = from; i < parent.length; i++)
+			parent[i] = i;
+	}
+}
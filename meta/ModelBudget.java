@@ -0,0 +1,172 @@
+/*
+ * ModelBudget.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import moa.classifiers.Classifier;
+import moa.core.DoubleVector;
+
+/**
+ * Byte sizes and usage of stored models, for keeping a learner within a
+ * memory budget. A model only changes while it is the current model, so its
+ * size is measured when it stops being current and cached from then on.
+ * <p>
+ * Sizes are measured by sizeofag, which only works when the JVM is started
+ * with -javaagent:sizeofag.jar and otherwise measures every object as 0
+ * bytes. A budget refuses to be created, or to record such a size, without it.
+ */
+public class ModelBudget implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	final long maxBytes;
+	EvictionPolicy policy;
+
+	//measured size of each slot, -1 when unknown or removed
+	long[] bytes = new long[0];
+	//drift at which each slot was last selected, and how many times it was selected
+	int[] lastUsed = new int[0];
+	int[] uses = new int[0];
+	long totalBytes = 0;
+	//the model that was current at the last check, its size is stale until it is measured again
+	int active = -1;
+
+	public ModelBudget(long maxBytes, EvictionPolicy policy){
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+		checkMeasurable(new DoubleVector().measureByteSize());
+	}
+
+	//every object takes some bytes, so a size of 0 means the agent is not loaded and the budget could never be exceeded
+	static long checkMeasurable(long size){
+		if(size <= 0)
+			throw new IllegalStateException("Model sizes cannot be measured, start the JVM with -javaagent:sizeofag.jar to use a memory budget");
+		return size;
+	}
+
+	public long getMaxBytes(){
+		return maxBytes;
+	}
+
+	public long getTotalBytes(){
+		return totalBytes;
+	}
+
+	public boolean isOverBudget(){
+		return totalBytes > maxBytes;
+	}
+
+	public EvictionPolicy getPolicy(){
+		return policy;
+	}
+
+	public void setPolicy(EvictionPolicy policy){
+		this.policy = policy;
+	}
+
+	public long getBytes(int slot){
+		return slot < bytes.length ? bytes[slot] : -1;
+	}
+
+	public int getLastUsed(int slot){
+		return slot < lastUsed.length ? lastUsed[slot] : 0;
+	}
+
+	public int getUses(int slot){
+		return slot < uses.length ? uses[slot] : 0;
+	}
+
+	public boolean isMeasured(int slot){
+		return getBytes(slot) >= 0;
+	}
+
+	public void measure(int slot, Classifier model){
+		set(slot, checkMeasurable(model.measureByteSize()));
+	}
+
+	//Measure a stored model, a cold one by the size it had when it was spilled so it is not loaded back.
+	//A shared copy is free while the model it shares is charged to its own slot
+	public void measure(int slot, ModelRepository repository){
+		long spilled = repository.getSpilledBytes(slot);
+		if(spilled >= 0) set(slot, checkMeasurable(spilled));
+		else if(repository.sharesStoredModel(slot)) set(slot, 0);
+		else measure(slot, repository.get(slot));
+	}
+
+	private void set(int slot, long size){
+		ensure(slot);
+		if(bytes[slot] >= 0) totalBytes -= bytes[slot];
+		bytes[slot] = size;
+		totalBytes += bytes[slot];
+	}
+
+	//a model was selected as the current model at the given drift
+	public void recordUse(int slot, int drift){
+		ensure(slot);
+		lastUsed[slot] = drift;
+		uses[slot]++;
+	}
+
+	//remeasure the model that was current until now, and note the new current model
+	public void setActive(int slot, ModelRepository repository){
+		if(active >= 0 && active != slot && repository.contains(active))
+			measure(active, repository);
+		active = slot;
+	}
+
+	public void remove(int slot){
+		if(slot >= bytes.length) return;
+		if(bytes[slot] >= 0) totalBytes -= bytes[slot];
+		bytes[slot] = -1;
+		lastUsed[slot] = 0;
+		uses[slot] = 0;
+	}
+
+	//move the per-slot state to the slots given by remap after the models were compacted
+	public void remap(int[] remap, int numSlots){
+		long[] movedBytes = new long[numSlots];
+		int[] movedLastUsed = new int[numSlots];
+		int[] movedUses = new int[numSlots];
+		Arrays.fill(movedBytes, -1);
+		for(int old = 0; old < Math.min(bytes.length, remap.length); old++){
+			int slot = remap[old];
+			if(slot < 0) continue;
+			movedBytes[slot] = bytes[old];
+			movedLastUsed[slot] = lastUsed[old];
+			movedUses[slot] = uses[old];
+		}
+		bytes = movedBytes;
+		lastUsed = movedLastUsed;
+		uses = movedUses;
+		if(active >= 0) active = active < remap.length ? remap[active] : -1;
+	}
+
+	private void ensure(int slot){
+		if(slot < bytes.length) return;
+		int length = Math.max(slot + 1, 2 * bytes.length);
+		int from = bytes.length;
+		bytes = Arrays.copyOf(bytes, length);
+		Arrays.fill(bytes, from, length, -1);
+		lastUsed = Arrays.copyOf(lastUsed, length);
+		uses = Arrays.copyOf(uses, length);
+	}
+}
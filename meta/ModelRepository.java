@@ -0,0 +1,656 @@
+/*
+ * ModelRepository.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import moa.classifiers.Classifier;
+
+/**
+ * Stored models indexed by slot. The active model and up to maxHot recently
+ * used models stay on the heap, colder models are serialized into a
+ * memory-mapped segment file and deserialized again when they are requested.
+ * A maxHot of 0 keeps every model on the heap.
+ *
+ * A removed slot holds no model and get returns null for it, like the
+ * ArrayList this replaces, until add reuses it for a new model. liveModels
+ * lists the stored models oldest first, and compact renumbers them once most
+ * slots are free. Methods are synchronized so models can be fetched from
+ * parallel buffer evaluation tasks.
+ *
+ * Models can also live only in a checkpoint directory (see
+ * AbstractCPF.checkpoint). Such models are read from their file the first
+ * time they are requested, and clean models are simply dropped rather than
+ * spilled since their checkpoint file already holds them. A copy that still
+ * shares a stored model is checkpointed as a reference to that model's file
+ * and shares the restored model again once the checkpoint is attached.
+ */
+public class ModelRepository implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int INITIAL_SEGMENT_SIZE = 1 << 20;
+
+	private static final byte REMOVED = 0;
+	private static final byte HOT = 1;
+	private static final byte SERIALIZED = 2;
+
+	long[] lastUsed = new long[16];
+	int slots = 0;
+	int maxHot = 0;
+	int active = -1;
+	long clock = 0;
+	String spillDirectory = null;
+	SlotAllocator allocator = new SlotAllocator();
+
+	//tier counters
+	long hits = 0;
+	long misses = 0;
+	long spills = 0;
+
+	//checkpoint file of each slot, and whether the model changed since it was written
+	String[] storedFiles = new String[16];
+	boolean[] dirty = new boolean[16];
+	//slot of the stored model a copy shared when it was checkpointed, -1 for other models
+	int[] sharedFrom = noSlots(16);
+
+	//measured size of each model when it last left the heap, -1 if unknown, only kept while measureSpills is set
+	boolean measureSpills = false;
+	long[] spilledBytes = unknownSizes(16);
+
+	//models are written by reference to their checkpoint files instead of inline while set
+	transient boolean externalize = false;
+	transient File checkpointDirectory;
+
+	transient ArrayList<Classifier> hotModels = new ArrayList<Classifier>();
+	transient int hotCount = 0;
+
+	//segment file holding cold models, rebuilt from the serialized bytes after deserialization
+	transient int[] coldLengths = new int[16];
+	transient int[] coldOffsets = new int[16];
+	transient long coldBytes = 0;
+	transient File segmentFile;
+	transient FileChannel channel;
+	transient MappedByteBuffer segment;
+	transient int segmentEnd = 0;
+	transient long deadBytes = 0;
+
+	public synchronized void setMaxHot(int maxHot){
+		this.maxHot = maxHot;
+		enforceHotLimit(-1);
+	}
+
+	//keep the measured size of models as they are spilled, for a memory budget
+	public synchronized void setMeasureSpills(boolean measureSpills){
+		this.measureSpills = measureSpills;
+	}
+
+	//the measured size of a model that is not on the heap, -1 if it is on the heap or its size is unknown
+	public synchronized long getSpilledBytes(int slot){
+		if(slot >= slots || hotModels.get(slot) != null || !contains(slot)) return -1;
+		return spilledBytes[slot];
+	}
+
+	public synchronized void setSpillDirectory(String spillDirectory){
+		this.spillDirectory = (spillDirectory == null || spillDirectory.isEmpty()) ? null : spillDirectory;
+	}
+
+	//the active model is never spilled, and the previous active model has been trained since it was stored
+	public synchronized void setActive(int slot){
+		if(active >= 0 && active < slots) dirty[active] = true;
+		this.active = slot;
+		if(slot >= 0 && slot < slots && hotModels.get(slot) == null && contains(slot))
+			get(slot);
+	}
+
+	public synchronized int size(){
+		return slots;
+	}
+
+	public synchronized boolean contains(int slot){
+		return hotModels.get(slot) != null || coldLengths[slot] > 0 || storedFiles[slot] != null;
+	}
+
+	public synchronized boolean isHot(int slot){
+		return hotModels.get(slot) != null;
+	}
+
+	public synchronized Classifier get(int slot){
+		Classifier model = hotModels.get(slot);
+		if(model != null){
+			hits++;
+			if(maxHot > 0) lastUsed[slot] = ++clock;
+			return model;
+		}
+		if(coldLengths[slot] == 0 && storedFiles[slot] == null) return null;
+
+		misses++;
+		if(coldLengths[slot] > 0){
+			model = (Classifier) deserialize(readCold(slot));
+			freeCold(slot);
+		} else {
+			model = (Classifier) deserialize(readStored(slot));
+		}
+		hotModels.set(slot, model);
+		hotCount++;
+		lastUsed[slot] = ++clock;
+		enforceHotLimit(slot);
+		return model;
+	}
+
+	//the new model takes the most recently freed slot, or a new slot at the end when none is free
+	public synchronized int add(Classifier model){
+		int slot = allocator.allocate();
+		if(slot == slots){
+			slots++;
+			ensureSlots(slots);
+			hotModels.add(null);
+		}
+		storedFiles[slot] = null;
+		spilledBytes[slot] = -1;
+		sharedFrom[slot] = -1;
+		hotModels.set(slot, model);
+		if(model != null) hotCount++;
+		dirty[slot] = true;
+		lastUsed[slot] = ++clock;
+		enforceHotLimit(slot);
+		return slot;
+	}
+
+	//replace the model in a slot, a null model removes it and frees the slot
+	public synchronized void set(int slot, Classifier model){
+		if(hotModels.get(slot) != null) hotCount--;
+		hotModels.set(slot, null);
+		if(coldLengths[slot] > 0) freeCold(slot);
+		storedFiles[slot] = null;
+		spilledBytes[slot] = -1;
+		sharedFrom[slot] = -1;
+		dirty[slot] = true;
+		if(model == null){
+			allocator.release(slot);
+			return;
+		}
+		hotModels.set(slot, model);
+		hotCount++;
+		lastUsed[slot] = ++clock;
+		enforceHotLimit(slot);
+	}
+
+	public synchronized void clear(){
+		hotModels.clear();
+		Arrays.fill(coldLengths, 0);
+		Arrays.fill(storedFiles, null);
+		Arrays.fill(dirty, false);
+		Arrays.fill(spilledBytes, -1);
+		Arrays.fill(sharedFrom, -1);
+		allocator.clear();
+		slots = 0;
+		hotCount = 0;
+		active = -1;
+		clock = 0;
+		coldBytes = 0;
+		deadBytes = 0;
+		segmentEnd = 0;
+	}
+
+	//slots of the stored models, oldest first
+	public synchronized ArrayList<Integer> liveModels(){
+		return allocator.liveSlots();
+	}
+
+	//the i-th oldest stored model's slot
+	public synchronized int liveModel(int i){
+		return allocator.live(i);
+	}
+
+	//whether a slot holds a copy that still shares a model stored on the heap in another slot
+	public synchronized boolean isSharedCopy(int slot){
+		Classifier model = hotModels.get(slot);
+		return model instanceof CopyOnWriteClassifier && ((CopyOnWriteClassifier) model).isShared();
+	}
+
+	//A shared copy whose stored model is on the heap in its own slot, which is charged for the bytes instead.
+	//Once that model is spilled, evicted or replaced the copy is the only holder and is charged for it
+	public synchronized boolean sharesStoredModel(int slot){
+		return sharedSlot(slot) >= 0;
+	}
+
+	//the slot holding the stored model a shared copy shares on the heap, -1 if there is none
+	private int sharedSlot(int slot){
+		if(!isSharedCopy(slot)) return -1;
+		CopyOnWriteClassifier copy = (CopyOnWriteClassifier) hotModels.get(slot);
+		for(int other = 0; other < slots; other++)
+			if(other != slot && copy.shares(hotModels.get(other))) return other;
+		return -1;
+	}
+
+	//the model in a slot if it is on the heap, without loading it or counting a hit
+	public synchronized Classifier peekHot(int slot){
+		return hotModels.get(slot);
+	}
+
+	public synchronized int liveCount(){
+		return allocator.liveCount();
+	}
+
+	public synchronized boolean shouldCompact(){
+		return allocator.shouldCompact();
+	}
+
+	/**
+	 * Move the stored models to slots 0..liveCount-1, keeping their age order,
+	 * so the free slots left behind by removed models are dropped. Returns the
+	 * new slot of each old slot, -1 for free ones, for remapping every other
+	 * structure indexed by slot.
+	 */
+	public synchronized int[] compact(){
+		int[] remap = allocator.compact();
+		int numSlots = allocator.size();
+		int capacity = lastUsed.length;
+		ArrayList<Classifier> models = new ArrayList<Classifier>(Arrays.asList(new Classifier[numSlots]));
+		int[] lengths = new int[capacity];
+		int[] offsets = new int[capacity];
+		long[] used = new long[capacity];
+		String[] files = new String[capacity];
+		boolean[] changed = new boolean[capacity];
+		long[] sizes = unknownSizes(capacity);
+		int[] sources = noSlots(capacity);
+		for(int old = 0; old < slots; old++){
+			int slot = remap[old];
+			if(slot < 0) continue;
+			models.set(slot, hotModels.get(old));
+			lengths[slot] = coldLengths[old];
+			offsets[slot] = coldOffsets[old];
+			used[slot] = lastUsed[old];
+			files[slot] = storedFiles[old];
+			changed[slot] = dirty[old];
+			sizes[slot] = spilledBytes[old];
+			sources[slot] = sharedFrom[old] >= 0 && sharedFrom[old] < remap.length ? remap[sharedFrom[old]] : -1;
+		}
+		hotModels = models;
+		coldLengths = lengths;
+		coldOffsets = offsets;
+		lastUsed = used;
+		storedFiles = files;
+		dirty = changed;
+		spilledBytes = sizes;
+		sharedFrom = sources;
+		if(active >= 0) active = active < remap.length ? remap[active] : -1;
+		slots = numSlots;
+		return remap;
+	}
+
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	public synchronized long getSpills(){
+		return spills;
+	}
+
+	public synchronized int getHotModels(){
+		return hotCount;
+	}
+
+	public synchronized int getColdModels(){
+		int cold = 0;
+		for(int i = 0; i < slots; i++)
+			if(coldLengths[i] > 0) cold++;
+		return cold;
+	}
+
+	//serialized bytes of the models held in the segment file
+	public synchronized long getColdBytes(){
+		return coldBytes;
+	}
+
+	//measured size of the models on the heap, this walks every hot model so it is only meant for reporting
+	public synchronized long getHotBytes(){
+		long bytes = 0;
+		for(Classifier model : hotModels)
+			if(model != null) bytes += model.measureByteSize();
+		return bytes;
+	}
+
+	//release the segment file, cold models are lost
+	public synchronized void close(){
+		clear();
+		closeSegment();
+	}
+
+	private void enforceHotLimit(int keep){
+		while(maxHot > 0 && hotCount > maxHot){
+			int victim = -1;
+			for(int i = 0; i < slots; i++){
+				if(i == keep || i == active || hotModels.get(i) == null) continue;
+				if(victim == -1 || lastUsed[i] < lastUsed[victim]) victim = i;
+			}
+			if(victim == -1) return;
+			spill(victim);
+		}
+	}
+
+	private void spill(int slot){
+		if(measureSpills) spilledBytes[slot] = hotModels.get(slot).measureByteSize();
+		if(dirty[slot] || storedFiles[slot] == null || checkpointDirectory == null)
+			writeCold(slot, serialize(hotModels.get(slot)));
+		hotModels.set(slot, null);
+		hotCount--;
+		spills++;
+	}
+
+	private void ensureSlots(int numSlots){
+		if(numSlots <= coldLengths.length) return;
+		int capacity = Math.max(numSlots, coldLengths.length * 2);
+		coldLengths = Arrays.copyOf(coldLengths, capacity);
+		coldOffsets = Arrays.copyOf(coldOffsets, capacity);
+		lastUsed = Arrays.copyOf(lastUsed, capacity);
+		storedFiles = Arrays.copyOf(storedFiles, capacity);
+		dirty = Arrays.copyOf(dirty, capacity);
+		int from = spilledBytes.length;
+		spilledBytes = Arrays.copyOf(spilledBytes, capacity);
+		Arrays.fill(spilledBytes, from, capacity, -1);
+		sharedFrom = Arrays.copyOf(sharedFrom, capacity);
+		Arrays.fill(sharedFrom, from, capacity, -1);
+	}
+
+	private static long[] unknownSizes(int capacity){
+		long[] sizes = new long[capacity];
+		Arrays.fill(sizes, -1);
+		return sizes;
+	}
+
+	private static int[] noSlots(int capacity){
+		int[] slots = new int[capacity];
+		Arrays.fill(slots, -1);
+		return slots;
+	}
+
+	//Use models stored in a checkpoint directory, they are loaded on first use except for the stored models
+	//that copies shared when the checkpoint was written, which are loaded now so the copies share them again
+	synchronized void attach(File directory){
+		this.checkpointDirectory = directory;
+		for(int i = 0; i < slots; i++){
+			if(sharedFrom[i] < 0 || hotModels.get(i) != null || !contains(i)) continue;
+			Classifier stored = get(sharedFrom[i]);
+			hotModels.set(i, new CopyOnWriteClassifier(stored));
+			hotCount++;
+			storedFiles[i] = null;
+			dirty[i] = true;
+			sharedFrom[i] = -1;
+			lastUsed[i] = ++clock;
+		}
+		enforceHotLimit(-1);
+	}
+
+	/**
+	 * Write every model that changed since the last checkpoint, or that is not
+	 * yet stored in this directory, to its own file. The active model is
+	 * always written since it is trained on every in-control instance. A copy
+	 * still sharing a stored model is not written, it refers to the file of
+	 * the model it shares and stays dirty until it is written on its own.
+	 */
+	synchronized void writeCheckpointModels(File directory, long generation) throws IOException {
+		boolean sameDirectory = checkpointDirectory != null
+				&& checkpointDirectory.getCanonicalFile().equals(directory.getCanonicalFile());
+		if(active >= 0 && active < slots) dirty[active] = true;
+		for(int i = 0; i < slots; i++){
+			if(!contains(i)) continue;
+			sharedFrom[i] = sharedSlot(i);
+			if(sharedFrom[i] >= 0) continue;
+			if(sameDirectory && !dirty[i] && storedFiles[i] != null) continue;
+
+			byte[] bytes;
+			//models written from the heap may only be in their file once restored, so their size is kept as well
+			if(hotModels.get(i) != null && measureSpills) spilledBytes[i] = hotModels.get(i).measureByteSize();
+			if(hotModels.get(i) != null) bytes = serialize(hotModels.get(i));
+			else if(coldLengths[i] > 0) bytes = readCold(i);
+			else bytes = readStored(i);
+
+			String name = "model-" + i + "-" + generation + ".ser";
+			File tmp = new File(directory, name + ".tmp");
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(bytes);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), new File(directory, name).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			storedFiles[i] = name;
+			dirty[i] = false;
+		}
+		for(int i = 0; i < slots; i++)
+			if(sharedFrom[i] >= 0) storedFiles[i] = storedFiles[sharedFrom[i]];
+		checkpointDirectory = directory;
+	}
+
+	//model files in the directory that no slot refers to any more
+	synchronized void deleteUnreferencedModels(File directory){
+		HashSet<String> referenced = new HashSet<String>();
+		for(int i = 0; i < slots; i++)
+			if(storedFiles[i] != null) referenced.add(storedFiles[i]);
+		File[] files = directory.listFiles();
+		if(files == null) return;
+		for(File file : files){
+			if(file.getName().startsWith("model-") && file.getName().endsWith(".ser")
+					&& !referenced.contains(file.getName()))
+				file.delete();
+		}
+	}
+
+	private byte[] readStored(int slot){
+		if(checkpointDirectory == null)
+			throw new IllegalStateException("Model " + slot + " is stored in a checkpoint that has not been attached");
+		try {
+			return Files.readAllBytes(new File(checkpointDirectory, storedFiles[slot]).toPath());
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read stored model " + slot, e);
+		}
+	}
+
+	private void writeCold(int slot, byte[] bytes){
+		compactIfWasteful();
+		ensureSegment(bytes.length);
+		segment.position(segmentEnd);
+		segment.put(bytes);
+		coldOffsets[slot] = segmentEnd;
+		coldLengths[slot] = bytes.length;
+		segmentEnd += bytes.length;
+		coldBytes += bytes.length;
+	}
+
+	private byte[] readCold(int slot){
+		byte[] bytes = new byte[coldLengths[slot]];
+		segment.position(coldOffsets[slot]);
+		segment.get(bytes);
+		return bytes;
+	}
+
+	private void freeCold(int slot){
+		coldBytes -= coldLengths[slot];
+		deadBytes += coldLengths[slot];
+		coldLengths[slot] = 0;
+		if(coldBytes == 0){
+			segmentEnd = 0;
+			deadBytes = 0;
+		}
+	}
+
+	//slide live cold models to the front of the segment once most of it is dead space
+	private void compactIfWasteful(){
+		if(deadBytes < INITIAL_SEGMENT_SIZE || deadBytes < coldBytes) return;
+		Integer[] order = new Integer[slots];
+		int live = 0;
+		for(int i = 0; i < slots; i++)
+			if(coldLengths[i] > 0) order[live++] = i;
+		Arrays.sort(order, 0, live, (a, b) -> Integer.compare(coldOffsets[a], coldOffsets[b]));
+
+		byte[] chunk = new byte[64 * 1024];
+		int writePos = 0;
+		for(int k = 0; k < live; k++){
+			int slot = order[k];
+			int readPos = coldOffsets[slot];
+			int remaining = coldLengths[slot];
+			coldOffsets[slot] = writePos;
+			while(remaining > 0){
+				int n = Math.min(chunk.length, remaining);
+				segment.position(readPos);
+				segment.get(chunk, 0, n);
+				segment.position(writePos);
+				segment.put(chunk, 0, n);
+				readPos += n;
+				writePos += n;
+				remaining -= n;
+			}
+		}
+		segmentEnd = writePos;
+		deadBytes = 0;
+	}
+
+	private void ensureSegment(int bytes){
+		long needed = (long) segmentEnd + bytes;
+		if(needed > Integer.MAX_VALUE)
+			throw new IllegalStateException("Cold model segment is limited to 2GB, increase hotModels");
+		try {
+			if(channel == null){
+				File dir = spillDirectory == null ? null : new File(spillDirectory);
+				segmentFile = File.createTempFile("cpf-models", ".seg", dir);
+				segmentFile.deleteOnExit();
+				channel = new RandomAccessFile(segmentFile, "rw").getChannel();
+			}
+			if(segment == null || needed > segment.capacity()){
+				long capacity = Math.max(needed, segment == null ? INITIAL_SEGMENT_SIZE : 2L * segment.capacity());
+				capacity = Math.min(capacity, Integer.MAX_VALUE);
+				segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to map cold model segment", e);
+		}
+	}
+
+	private void closeSegment(){
+		segment = null;
+		if(channel != null){
+			try {
+				channel.close();
+			} catch (IOException e) {
+				//nothing left to release
+			}
+			channel = null;
+		}
+		if(segmentFile != null){
+			segmentFile.delete();
+			segmentFile = null;
+		}
+	}
+
+	static byte[] serialize(Object model){
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(model);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to serialize model", e);
+		}
+	}
+
+	static Object deserialize(byte[] bytes){
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			Object model = in.readObject();
+			in.close();
+			return model;
+		} catch (IOException | ClassNotFoundException e) {
+			throw new RuntimeException("Unable to deserialize model", e);
+		}
+	}
+
+	//Models are written inline, cold and stored models as their serialized bytes which go to a new
+	//segment file on read. While a checkpoint is written only the checkpoint file names are kept.
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeBoolean(externalize);
+		if(externalize) return;
+		for(int i = 0; i < slots; i++){
+			if(hotModels.get(i) != null){
+				out.writeByte(HOT);
+				out.writeObject(hotModels.get(i));
+			} else if(contains(i)){
+				byte[] bytes = coldLengths[i] > 0 ? readCold(i) : readStored(i);
+				out.writeByte(SERIALIZED);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			} else {
+				out.writeByte(REMOVED);
+			}
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		//sizes were not kept before checkpoint version 5
+		if(spilledBytes == null) spilledBytes = unknownSizes(lastUsed.length);
+		//nor were shared copies
+		if(sharedFrom == null) sharedFrom = noSlots(lastUsed.length);
+		hotModels = new ArrayList<Classifier>(Arrays.asList(new Classifier[slots]));
+		coldLengths = new int[lastUsed.length];
+		coldOffsets = new int[lastUsed.length];
+		boolean externalized = in.readBoolean();
+		if(externalized) return;
+
+		for(int i = 0; i < slots; i++){
+			storedFiles[i] = null;
+			sharedFrom[i] = -1;
+			dirty[i] = true;
+			byte kind = in.readByte();
+			if(kind == HOT){
+				hotModels.set(i, (Classifier) in.readObject());
+				hotCount++;
+			} else if(kind == SERIALIZED){
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				writeCold(i, bytes);
+			}
+		}
+	}
+}
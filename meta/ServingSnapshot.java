@@ -0,0 +1,95 @@
+/*
+ * ServingSnapshot.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+
+/**
+ * Copies of a learner's active model, published for prediction from other
+ * threads. The copies are never trained, and a new snapshot replaces them as
+ * a whole. Predicting is not read-only for every MOA model, so no two threads
+ * predict with the same copy: the training thread takes a fixed number of
+ * copies when it publishes, and each prediction borrows one of them and
+ * hands it back. Readers never copy a model or take a lock. When more
+ * threads predict at once than there are copies, the extra ones spin until a
+ * copy is handed back. Copies belong to the snapshot and go with it once
+ * readers move on to a newer one.
+ */
+public final class ServingSnapshot {
+
+	//copies not lent to a reader, a slot is null while its copy is in use
+	final AtomicReferenceArray<Classifier> copies;
+	final int concept;
+	final long instance;
+	final long generation;
+
+	ServingSnapshot(Classifier model, int numCopies, int concept, long instance, long generation){
+		this.copies = new AtomicReferenceArray<Classifier>(numCopies);
+		for(int i = 0; i < numCopies; i++)
+			this.copies.set(i, model.copy());
+		this.concept = concept;
+		this.instance = instance;
+		this.generation = generation;
+	}
+
+	//votes of a copy of the snapshot that no other thread is using
+	public double[] getVotesForInstance(Instance inst){
+		int n = copies.length();
+		//threads start looking at different copies so they rarely contend for the same one
+		int start = (int) ((Thread.currentThread().getId() & 0x7fffffff) % n);
+		while(true){
+			for(int k = 0; k < n; k++){
+				int i = (start + k) % n;
+				Classifier model = copies.getAndSet(i, null);
+				if(model == null) continue;
+				try {
+					return model.getVotesForInstance(inst);
+				} finally {
+					copies.set(i, model);
+				}
+			}
+			Thread.yield();
+		}
+	}
+
+	//number of threads that can predict at once without waiting
+	public int getNumCopies(){
+		return copies.length();
+	}
+
+	//slot of the stored model this is a copy of
+	public int getConcept(){
+		return concept;
+	}
+
+	//number of instances the learner had trained on when the copy was taken
+	public long getInstance(){
+		return instance;
+	}
+
+	//number of snapshots the learner had published before this one
+	public long getGeneration(){
+		return generation;
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * ShadowTrainer.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+import moa.core.Utils;
+
+/**
+ * Tests and trains ECPF's contending model on a worker thread, in the order
+ * the instances were submitted. The worker owns the model between drains, so
+ * the submitting thread may only touch the model, or change the counts, once
+ * drain() has returned. Submitting blocks while the queue is full.
+ *
+ * The worker parks while the queue is empty and exits once it has been idle
+ * for IDLE_TIMEOUT_NANOS, and the next submit starts a new one, so the
+ * trainer of a learner that is dropped without being closed holds no thread.
+ */
+public class ShadowTrainer implements Runnable {
+
+	//a task that only predicts or only trains, an instance on its own in the queue does both
+	static final class Task {
+		final Instance instance;
+		final boolean train;
+
+		Task(Instance instance, boolean train){
+			this.instance = instance;
+			this.train = train;
+		}
+	}
+
+	static final long IDLE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	final SpscQueue<Object> queue;
+	volatile Thread thread;
+	//whether a worker is running or about to, only one worker polls the queue at a time
+	final AtomicBoolean alive = new AtomicBoolean(false);
+	volatile boolean running = true;
+	volatile boolean idle = false;
+
+	Classifier model;
+	//tasks submitted, read and written by the submitting thread only
+	long submitted = 0;
+	volatile long completed = 0;
+	//instances predicted in the high half, of which correctly predicted in the low half, so both are read together
+	volatile long progress = 0;
+	volatile Throwable failure;
+
+	public ShadowTrainer(int capacity){
+		this.queue = new SpscQueue<Object>(capacity);
+	}
+
+	//whether a worker thread is running, it exits when idle and after close
+	boolean isWorkerAlive(){
+		Thread worker = thread;
+		return worker != null && worker.isAlive();
+	}
+
+	private void startWorker(){
+		Thread worker = new Thread(this, "ecpf-shadow-trainer");
+		worker.setDaemon(true);
+		thread = worker;
+		worker.start();
+	}
+
+	//Hand a new model to the worker, must be drained. A reused copy that still shares a stored model takes its
+	//copy here, on the calling thread, as the worker must not read the stored model while the caller tests it
+	void setModel(Classifier model, int correct, int predicted){
+		if(model instanceof CopyOnWriteClassifier) ((CopyOnWriteClassifier) model).own();
+		this.model = model;
+		this.progress = ((long) predicted << 32) | (correct & 0xffffffffL);
+	}
+
+	Classifier getModel(){
+		return model;
+	}
+
+	public int capacity(){
+		return queue.capacity();
+	}
+
+	//test then train on inst
+	void testAndTrain(Instance inst){
+		submit(inst);
+	}
+
+	void test(Instance inst){
+		submit(new Task(inst, false));
+	}
+
+	void train(Instance inst){
+		submit(new Task(inst, true));
+	}
+
+	public int getPredicted(){
+		return (int) (progress >>> 32);
+	}
+
+	public int getCorrect(){
+		return (int) progress;
+	}
+
+	//snapshot of predicted and correct, see getPredicted and getCorrect
+	long getProgress(){
+		return progress;
+	}
+
+	private void submit(Object task){
+		if(!running) throw new IllegalStateException("Shadow trainer is closed");
+		while(!queue.offer(task)){
+			LockSupport.unpark(thread);
+			Thread.yield();
+		}
+		submitted++;
+		//an atomic swap rather than a read, so a retiring worker either sees the task or this starts a new worker
+		if(!alive.getAndSet(true)) startWorker();
+		else if(idle) LockSupport.unpark(thread);
+	}
+
+	//wait until the worker has finished every submitted task
+	public void drain(){
+		while(completed < submitted){
+			if(idle) LockSupport.unpark(thread);
+			Thread.yield();
+		}
+		Throwable t = failure;
+		if(t != null){
+			failure = null;
+			throw new RuntimeException("Shadow model training failed", t);
+		}
+	}
+
+	//stop the worker, tasks not yet done are dropped and the trainer takes no more
+	public void close(){
+		running = false;
+		Thread worker = thread;
+		if(worker == null) return;
+		LockSupport.unpark(worker);
+		try {
+			worker.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run(){
+		long idleSince = -1;
+		while(running){
+			Object task = queue.poll();
+			if(task == null){
+				if(idleSince < 0) idleSince = System.nanoTime();
+				else if(System.nanoTime() - idleSince >= IDLE_TIMEOUT_NANOS){
+					if(retire()) return;
+					idleSince = -1;
+					continue;
+				}
+				idle = true;
+				if(running && queue.isEmpty())
+					LockSupport.parkNanos(this, IDLE_TIMEOUT_NANOS);
+				idle = false;
+				continue;
+			}
+			idleSince = -1;
+			try {
+				if(failure == null){
+					if(task instanceof Task){
+						Task t = (Task) task;
+						if(t.train) model.trainOnInstance(t.instance);
+						else predict(t.instance);
+					} else {
+						predict((Instance) task);
+						model.trainOnInstance((Instance) task);
+					}
+				}
+			} catch (Throwable t) {
+				//reported by the next drain, later tasks are skipped so the submitter never blocks
+				failure = t;
+			}
+			completed = completed + 1;
+		}
+	}
+
+	//Give up the queue, unless a task arrived and no new worker was started for it. The first swap reads the
+	//submitter's last swap, so every task submitted before it is seen by isEmpty
+	private boolean retire(){
+		alive.compareAndSet(true, false);
+		return queue.isEmpty() || !alive.compareAndSet(false, true);
+	}
+
+	private void predict(Instance inst){
+		long p = progress + (1L << 32);
+		if(Utils.maxIndex(model.getVotesForInstance(inst)) == (int) inst.classValue()) p++;
+		progress = p;
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * SlotAllocator.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Model slot ids with a free list, so the slots of removed models are reused
+ * instead of piling up. The live slots are also kept as a dense array in the
+ * order they were allocated, which is the age order CPF and ECPF rely on when
+ * slots were never reused, so walking the stored models costs the number of
+ * live models rather than every model ever created.
+ */
+public class SlotAllocator implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	//free slots are only worth compacting away once there are this many and more than live ones
+	static final int MIN_COMPACT_FREE = 64;
+
+	int slots = 0;
+	int[] live = new int[16];
+	int liveCount = 0;
+	//stack of released slots, the most recently released is reused first
+	int[] free = new int[16];
+	int freeCount = 0;
+
+	//a slot for a new model, equal to size() before the call when no released slot is left
+	public int allocate(){
+		int slot = freeCount > 0 ? free[--freeCount] : slots++;
+		if(liveCount == live.length) live = Arrays.copyOf(live, 2 * live.length);
+		live[liveCount++] = slot;
+		return slot;
+	}
+
+	public void release(int slot){
+		int position = indexOf(slot);
+		if(position < 0) return;
+		System.arraycopy(live, position + 1, live, position, liveCount - position - 1);
+		liveCount--;
+		if(freeCount == free.length) free = Arrays.copyOf(free, 2 * free.length);
+		free[freeCount++] = slot;
+	}
+
+	//number of slots ever handed out and not compacted away, live or free
+	public int size(){
+		return slots;
+	}
+
+	public int liveCount(){
+		return liveCount;
+	}
+
+	//the i-th oldest live slot
+	public int live(int i){
+		return live[i];
+	}
+
+	public ArrayList<Integer> liveSlots(){
+		ArrayList<Integer> slots = new ArrayList<Integer>(liveCount);
+		for(int i = 0; i < liveCount; i++)
+			slots.add(live[i]);
+		return slots;
+	}
+
+	public boolean shouldCompact(){
+		return freeCount >= MIN_COMPACT_FREE && freeCount > liveCount;
+	}
+
+	/**
+	 * Renumber the live slots 0..liveCount-1 in age order and drop the free
+	 * list. Returns the new slot of every old slot, -1 for free ones, which the
+	 * owner of each per-slot structure applies with the same mapping.
+	 */
+	public int[] compact(){
+		int[] remap = new int[slots];
+		Arrays.fill(remap, -1);
+		for(int i = 0; i < liveCount; i++){
+			remap[live[i]] = i;
+			live[i] = i;
+		}
+		slots = liveCount;
+		freeCount = 0;
+		return remap;
+	}
+
+	public void clear(){
+		slots = 0;
+		liveCount = 0;
+		freeCount = 0;
+	}
+
+	private int indexOf(int slot){
+		for(int i = liveCount - 1; i >= 0; i--)
+			if(live[i] == slot) return i;
+		return -1;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * SpscQueue.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer
+ * thread. Capacity is rounded up to a power of two. Each side caches the
+ * other side's index so it only reads the shared counter when the queue
+ * looks full or empty.
+ */
+public class SpscQueue<E> {
+
+	final Object[] elements;
+	final int mask;
+
+	//next slot to read, written by the consumer only
+	final AtomicLong head = new AtomicLong();
+	//next slot to write, written by the producer only
+	final AtomicLong tail = new AtomicLong();
+
+	long producerCachedHead = 0;
+	long consumerCachedTail = 0;
+
+	public SpscQueue(int capacity){
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.elements = new Object[size];
+		this.mask = size - 1;
+	}
+
+	public int capacity(){
+		return elements.length;
+	}
+
+	//add an element, returning false without blocking when the queue is full
+	public boolean offer(E element){
+		long t = tail.get();
+		if(t - producerCachedHead >= elements.length){
+			producerCachedHead = head.get();
+			if(t - producerCachedHead >= elements.length) return false;
+		}
+		elements[(int) t & mask] = element;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	//take the oldest element, or null when the queue is empty
+	@SuppressWarnings("unchecked")
+	public E poll(){
+		long h = head.get();
+		if(h >= consumerCachedTail){
+			consumerCachedTail = tail.get();
+			if(h >= consumerCachedTail) return null;
+		}
+		int slot = (int) h & mask;
+		E element = (E) elements[slot];
+		elements[slot] = null;
+		head.lazySet(h + 1);
+		return element;
+	}
+
+	public boolean isEmpty(){
+		return head.get() >= tail.get();
+	}
+
+	public int size(){
+		return (int) (tail.get() - head.get());
+	}
+}
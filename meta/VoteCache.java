@@ -0,0 +1,105 @@
+/*
+ * VoteCache.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+
+/**
+ * Votes of a few models for the most recent instance, so an instance that is
+ * predicted and then trained on is only scored once by each model. Entries are
+ * keyed on instance and model identity and on a version, which the learner
+ * advances whenever any of its models may have changed and at the start of
+ * every external prediction, so the cache only spans one predict and train
+ * step. The instance's values are kept as well, so an instance refilled in
+ * place, like a reused view, never matches the votes of its old values.
+ */
+public class VoteCache {
+
+	static final int ENTRIES = 4;
+
+	Instance instance;
+	//values of instance when its votes were computed
+	double[] values = new double[0];
+	int numValues = 0;
+	final Classifier[] models = new Classifier[ENTRIES];
+	final double[][] votes = new double[ENTRIES][];
+	final long[] versions = new long[ENTRIES];
+	int next = 0;
+	long version = 0;
+
+	long hits = 0;
+	long misses = 0;
+
+	//votes of model for inst, computed on a miss
+	public double[] votes(Classifier model, Instance inst){
+		if(sameInstance(inst)){
+			for(int k = 0; k < ENTRIES; k++){
+				if(models[k] == model && versions[k] == version){
+					hits++;
+					return votes[k];
+				}
+			}
+		} else {
+			remember(inst);
+			for(int k = 0; k < ENTRIES; k++){
+				models[k] = null;
+				votes[k] = null;
+			}
+			next = 0;
+		}
+		misses++;
+		double[] result = model.getVotesForInstance(inst);
+		models[next] = model;
+		votes[next] = result;
+		versions[next] = version;
+		next = (next + 1 == ENTRIES) ? 0 : next + 1;
+		return result;
+	}
+
+	private boolean sameInstance(Instance inst){
+		if(inst != instance || inst.numAttributes() != numValues) return false;
+		for(int a = 0; a < numValues; a++)
+			if(Double.compare(values[a], inst.value(a)) != 0) return false;
+		return true;
+	}
+
+	private void remember(Instance inst){
+		instance = inst;
+		numValues = inst.numAttributes();
+		if(values.length < numValues) values = new double[numValues];
+		for(int a = 0; a < numValues; a++)
+			values[a] = inst.value(a);
+	}
+
+	//call once models have been trained, swapped or replaced
+	public void advance(){
+		version++;
+	}
+
+	public long getHits(){
+		return hits;
+	}
+
+	public long getMisses(){
+		return misses;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * BatchTrainingTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * trainOnBatch must leave a learner exactly as trainOnInstance on each
+ * instance would, including for instances that are not trained on.
+ */
+public class BatchTrainingTest {
+
+	//a recurring stream where some instances have no weight or no class value
+	static Instance[] stream(){
+		Instance[] instances = TestStreams.recurring(3000, 1, 5, 1, 5);
+		for(int i = 0; i < instances.length; i++){
+			if(i % 97 == 0) instances[i].setWeight(0);
+			else if(i % 89 == 0) instances[i].setMissing(instances[i].classIndex());
+		}
+		return instances;
+	}
+
+	static void assertSameAfterBatches(String learner, int batchSize){
+		Instance[] instances = stream();
+		AbstractCPF sequential = TestStreams.newLearner(learner);
+		AbstractCPF batched = TestStreams.newLearner(learner);
+		for(Instance inst : instances)
+			sequential.trainOnInstance(inst);
+		for(int from = 0; from < instances.length; from += batchSize)
+			batched.trainOnBatch(instances, from, Math.min(instances.length, from + batchSize));
+
+		assertTrue(sequential.getNumDrifts() > 0);
+		assertEquals(sequential.getNumDrifts(), batched.getNumDrifts());
+		assertEquals(sequential.getModelReuses(), batched.getModelReuses());
+		assertEquals(sequential.trainingWeightSeenByModel(), batched.trainingWeightSeenByModel(), 0);
+		for(Instance inst : TestStreams.concept(5, 99, 500))
+			assertArrayEquals(sequential.getVotesForInstance(inst), batched.getVotesForInstance(inst), 0);
+	}
+
+	@Test
+	public void cpfBatchesMatchSequentialTraining(){
+		assertSameAfterBatches("CPF", 1);
+		assertSameAfterBatches("CPF", 256);
+	}
+
+	@Test
+	public void ecpfBatchesMatchSequentialTraining(){
+		assertSameAfterBatches("ECPF", 1);
+		assertSameAfterBatches("ECPF", 256);
+	}
+}
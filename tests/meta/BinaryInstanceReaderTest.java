@@ -0,0 +1,114 @@
+/*
+ * BinaryInstanceReaderTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+/**
+ * Instances read back from a binary file, kept across calls to next, and
+ * views reused by nextBatch.
+ */
+public class BinaryInstanceReaderTest {
+
+	File file;
+	Instance[] written;
+
+	@Before
+	public void write() throws IOException {
+		written = TestStreams.recurring(500, 1, 5);
+		file = File.createTempFile("instances", ".bin");
+		BinaryInstanceWriter writer = new BinaryInstanceWriter(file, new InstancesHeader(written[0].dataset()));
+		try {
+			for(Instance inst : written)
+				writer.write(inst);
+		} finally {
+			writer.close();
+		}
+	}
+
+	@After
+	public void delete(){
+		file.delete();
+	}
+
+	static void assertSameValues(Instance expected, Instance actual){
+		for(int a = 0; a < expected.numAttributes(); a++)
+			assertEquals(expected.value(a), actual.value(a), 0);
+	}
+
+	@Test
+	public void predictionsAcrossTwoNextCalls() throws IOException {
+		CPF cpf = new CPF();
+		cpf.prepareForUse();
+		for(Instance inst : TestStreams.concept(1, 7, 2000))
+			cpf.trainOnInstance(inst);
+
+		BinaryInstanceReader reader = new BinaryInstanceReader(file);
+		try {
+			assertEquals(written.length, reader.numInstances());
+			Instance first = reader.next();
+			double[] firstVotes = cpf.getVotesForInstance(first);
+			Instance second = reader.next();
+			assertNotSame(first, second);
+			cpf.getVotesForInstance(second);
+			//the first instance is untouched by reading the second, and so are its votes
+			assertSameValues(written[0], first);
+			assertSameValues(written[1], second);
+			assertArrayEquals(firstVotes, cpf.getVotesForInstance(first), 0);
+			assertArrayEquals(cpf.getVotesForInstance(written[1]), cpf.getVotesForInstance(second), 0);
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void batchViewsAreRefilled() throws IOException {
+		BinaryInstanceReader reader = new BinaryInstanceReader(file);
+		try {
+			Instance[] batch = new Instance[64];
+			assertEquals(64, reader.nextBatch(batch));
+			Instance view = batch[0];
+			assertSameValues(written[0], view);
+			assertEquals(64, reader.nextBatch(batch));
+			assertSame(view, batch[0]);
+			assertSameValues(written[64], view);
+
+			reader.seek(0);
+			AbstractCPF learner = TestStreams.newLearner("CPF");
+			assertEquals(written.length, reader.replay(learner, 64));
+			assertEquals(written.length, (long) learner.trainingWeightSeenByModel());
+		} finally {
+			reader.close();
+		}
+	}
+}
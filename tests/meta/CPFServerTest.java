@@ -0,0 +1,177 @@
+/*
+ * CPFServerTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.streams.generators.AgrawalGenerator;
+
+/**
+ * The line protocol of CPFServer over a loopback connection.
+ */
+public class CPFServerTest {
+
+	CPFServer server;
+
+	static InstancesHeader header(){
+		AgrawalGenerator stream = new AgrawalGenerator();
+		stream.prepareForUse();
+		return stream.getHeader();
+	}
+
+	//a request's values, with the class as ? if it is to be left out
+	static String values(Instance inst, boolean withClass){
+		StringBuilder line = new StringBuilder();
+		for(int a = 0; a < inst.numAttributes(); a++){
+			if(a > 0) line.append(',');
+			if(a == inst.classIndex() && !withClass) line.append('?');
+			else line.append(inst.value(a));
+		}
+		return line.toString();
+	}
+
+	CPFServer start(int batchSize, long maxBatchDelayMicros, int queueCapacity) throws IOException {
+		CPF cpf = new CPF();
+		cpf.servingIntervalOption.setValue(100);
+		cpf.prepareForUse();
+		server = new CPFServer(cpf, header(), batchSize, maxBatchDelayMicros, queueCapacity);
+		server.start(0);
+		return server;
+	}
+
+	@After
+	public void close(){
+		if(server != null) server.close();
+	}
+
+	static class Connection {
+		final Socket socket;
+		final BufferedReader in;
+		final Writer out;
+
+		Connection(CPFServer server) throws IOException {
+			socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+		}
+
+		void send(String line) throws IOException {
+			out.write(line);
+			out.write('\n');
+			out.flush();
+		}
+
+		String request(String line) throws IOException {
+			send(line);
+			return in.readLine();
+		}
+	}
+
+	@Test
+	public void trainPredictFlushQuit() throws IOException {
+		start(16, 1000, 10000);
+		Connection connection = new Connection(server);
+		Instance[] stream = TestStreams.concept(1, 1, 1000);
+		for(Instance inst : stream)
+			assertEquals("OK", connection.request("TRAIN " + values(inst, true)));
+		assertEquals("OK 1000", connection.request("FLUSH"));
+		assertEquals(1000, server.getTrained());
+
+		Instance test = TestStreams.concept(1, 2, 1)[0];
+		String reply = connection.request("PREDICT " + values(test, false));
+		assertTrue(reply, reply.startsWith("VOTES "));
+		//predictions on another connection are read from that connection's own copy
+		Connection other = new Connection(server);
+		assertEquals(reply, other.request("PREDICT " + values(test, false)));
+
+		connection.send("QUIT");
+		assertNull(connection.in.readLine());
+		other.socket.close();
+	}
+
+	@Test
+	public void fullBatchesAreTrainedWithoutWaiting() throws IOException {
+		//a delay far longer than the test, so only full batches are trained before the deadline
+		start(10, 60000000, 10000);
+		Connection connection = new Connection(server);
+		for(Instance inst : TestStreams.concept(1, 1, 20))
+			assertEquals("OK", connection.request("TRAIN " + values(inst, true)));
+		long waited = 0;
+		while(server.getTrained() < 20 && waited < 10000){
+			sleep(10);
+			waited += 10;
+		}
+		assertEquals(20, server.getTrained());
+		assertEquals(2, server.getBatches());
+	}
+
+	@Test
+	public void partialBatchWaitsFromItsOldestInstance() throws IOException {
+		start(10, 300000, 10000);
+		Connection connection = new Connection(server);
+		Instance[] stream = TestStreams.concept(1, 1, 5);
+		long start = System.nanoTime();
+		for(Instance inst : stream)
+			assertEquals("OK", connection.request("TRAIN " + values(inst, true)));
+		assertEquals("OK 5", connection.request("FLUSH"));
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		assertEquals(1, server.getBatches());
+		assertTrue("flushed after " + elapsedMillis + "ms", elapsedMillis >= 290);
+	}
+
+	@Test
+	public void malformedRequestsGetErrors() throws IOException {
+		start(4, 1000, 10000);
+		Connection connection = new Connection(server);
+		Instance inst = TestStreams.concept(1, 1, 1)[0];
+		assertTrue(connection.request("TRAIN 1,2,3").startsWith("ERROR expected"));
+		assertTrue(connection.request("TRAIN " + values(inst, true).replaceFirst("[^,]*", "x")).startsWith("ERROR"));
+		assertTrue(connection.request("TRAIN " + values(inst, false)).startsWith("ERROR the class"));
+		assertTrue(connection.request("SING").startsWith("ERROR unknown request"));
+		//the connection is still usable
+		assertEquals("OK", connection.request("TRAIN " + values(inst, true)));
+		assertEquals("OK 1", connection.request("FLUSH"));
+	}
+
+	static void sleep(long millis){
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * CopyOnWriteClassifierTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.Classifier;
+import moa.classifiers.trees.HoeffdingTree;
+
+/**
+ * A reused ECPF model shares the stored model until it is trained, and must
+ * behave as a deep copy of it throughout.
+ */
+public class CopyOnWriteClassifierTest {
+
+	static Classifier trained(){
+		HoeffdingTree tree = new HoeffdingTree();
+		tree.prepareForUse();
+		for(Instance inst : TestStreams.concept(1, 1, 2000))
+			tree.trainOnInstance(inst);
+		return tree;
+	}
+
+	@Test
+	public void sharesUntilTrained(){
+		Classifier stored = trained();
+		CopyOnWriteClassifier copy = new CopyOnWriteClassifier(stored);
+		assertTrue(copy.isShared());
+		assertTrue(copy.shares(stored));
+		assertEquals(stored.isRandomizable(), copy.isRandomizable());
+		//charged the stored model's size, the budget decides who pays for it
+		assertEquals(stored.measureByteSize(), copy.measureByteSize());
+
+		Instance[] other = TestStreams.concept(5, 2, 500);
+		double[] before = stored.getVotesForInstance(other[0]);
+		for(Instance inst : other)
+			copy.trainOnInstance(inst);
+		assertFalse(copy.isShared());
+		assertArrayEquals(before, stored.getVotesForInstance(other[0]), 0);
+	}
+
+	@Test
+	public void copyOfSharedIsDeep(){
+		Classifier stored = trained();
+		Classifier copy = new CopyOnWriteClassifier(stored).copy();
+		assertNotSame(stored, copy);
+		assertFalse(copy instanceof CopyOnWriteClassifier);
+
+		Instance[] other = TestStreams.concept(5, 2, 500);
+		double[] before = stored.getVotesForInstance(other[0]);
+		for(Instance inst : other)
+			copy.trainOnInstance(inst);
+		assertArrayEquals(before, stored.getVotesForInstance(other[0]), 0);
+	}
+
+	@Test
+	public void sharedCopyIsChargedOnce(){
+		ModelRepository repository = new ModelRepository();
+		Classifier stored = trained();
+		int storedSlot = repository.add(stored);
+		int copySlot = repository.add(new CopyOnWriteClassifier(stored));
+		assertTrue(repository.isSharedCopy(copySlot));
+		assertTrue(repository.sharesStoredModel(copySlot));
+
+		ModelBudget budget = new ModelBudget(Long.MAX_VALUE, EvictionPolicy.LRU);
+		budget.measure(storedSlot, repository);
+		budget.measure(copySlot, repository);
+		assertEquals(stored.measureByteSize(), budget.getTotalBytes());
+
+		//once the stored model is gone the copy holds the only reference
+		repository.set(storedSlot, null);
+		assertFalse(repository.sharesStoredModel(copySlot));
+		budget.remove(storedSlot);
+		budget.measure(copySlot, repository);
+		assertEquals(stored.measureByteSize(), budget.getTotalBytes());
+	}
+
+	@Test
+	public void sharedCopyIsTestedOnceOnTheBuffer(){
+		ModelRepository repository = new ModelRepository();
+		Classifier stored = trained();
+		int storedSlot = repository.add(stored);
+		int otherSlot = repository.add(trained());
+		int copySlot = repository.add(new CopyOnWriteClassifier(stored));
+		InstanceRingBuffer buffer = new InstanceRingBuffer(100);
+		for(Instance inst : TestStreams.concept(5, 2, 100))
+			buffer.add(inst);
+
+		AbstractCPF ecpf = new ECPF();
+		ecpf.parallelEvaluationOption.set();
+		ecpf.prepareForUse();
+		ArrayList<Integer> models = new ArrayList<Integer>(Arrays.asList(copySlot, otherSlot, storedSlot));
+		assertArrayEquals(new int[]{0, 1, 0}, AbstractCPF.sameModels(repository, models));
+		//the stored model is never read by two fork-join tasks at once, and both get its errors
+		long[][] errors = ecpf.evaluateModelsOnBuffer(repository, models, buffer);
+		assertEquals(2 * buffer.size(), ecpf.bufferTests);
+		assertArrayEquals(errors[0], errors[2]);
+		ecpf.close();
+	}
+
+	@Test
+	public void sharedCopyIsCheckpointedOnce() throws Exception {
+		ModelRepository repository = new ModelRepository();
+		Classifier stored = trained();
+		int storedSlot = repository.add(stored);
+		int copySlot = repository.add(new CopyOnWriteClassifier(stored));
+		File directory = Files.createTempDirectory("cpf-checkpoint").toFile();
+		repository.writeCheckpointModels(directory, 1);
+		assertEquals("only the stored model has a file", 1, directory.listFiles().length);
+
+		repository.externalize = true;
+		ModelRepository restored = (ModelRepository) ModelRepository.deserialize(ModelRepository.serialize(repository));
+		restored.attach(directory);
+		assertTrue(restored.sharesStoredModel(copySlot));
+		assertTrue(((CopyOnWriteClassifier) restored.get(copySlot)).shares(restored.get(storedSlot)));
+		for(File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void ecpfReusesThroughDrifts(){
+		AbstractCPF ecpf = TestStreams.newLearner("ECPF");
+		for(Instance inst : TestStreams.recurring(3000, 1, 5, 1, 5, 1))
+			ecpf.trainOnInstance(inst);
+		assertTrue(ecpf.getNumDrifts() > 0);
+		assertTrue(ecpf.getModelReuses() > 0);
+		for(Instance inst : TestStreams.concept(1, 99, 200))
+			assertTrue(ecpf.getVotesForInstance(inst).length > 0);
+	}
+}
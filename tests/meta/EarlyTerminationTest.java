@@ -0,0 +1,78 @@
+/*
+ * VoteCacheTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+public class EarlyTerminationTest {
+
+	static final String[] LEARNERS = {"CPF", "ECPF"};
+
+	static AbstractCPF newLearner(String name, boolean earlyTermination){
+		AbstractCPF learner = name.equals("ECPF") ? new ECPF() : new CPF();
+		if(earlyTermination) learner.earlyTerminationOption.set();
+		learner.prepareForUse();
+		return learner;
+	}
+
+	static AgreementMatrix agreement(AbstractCPF learner){
+		return learner instanceof ECPF ? ((ECPF) learner).modelComparisonMeasurements : ((CPF) learner).modelComparisonMeasurements;
+	}
+
+	//total instances each pair of models was compared on
+	static long seen(AgreementMatrix matrix){
+		long total = 0;
+		for(int j = 1; j < matrix.slots(); j++)
+			for(int i = 0; i < j; i++)
+				total += matrix.seen(i, j);
+		return total;
+	}
+
+	/**
+	 * Early termination picks the same model as a full evaluation at each
+	 * drift, but only counts agreement on the instances both models were
+	 * tested on, so from the first drift with two stored models its agreement
+	 * differs from a full evaluation's and merging may then diverge.
+	 */
+	@Test
+	public void agreementIsCountedOnTestedPrefixes(){
+		for(String name : LEARNERS){
+			AbstractCPF full = newLearner(name, false);
+			AbstractCPF early = newLearner(name, true);
+			boolean diverged = false;
+			for(Instance inst : TestStreams.recurring(1500, 1, 5, 1, 5, 8)){
+				full.trainOnInstance(inst);
+				early.trainOnInstance(inst);
+				assertEquals(name, full.getNumDrifts(), early.getNumDrifts());
+				assertEquals(name + " selects the same model", full.getModelReuses(), early.getModelReuses());
+				if(seen(agreement(early)) < seen(agreement(full))){
+					diverged = true;
+					break;
+				}
+				assertEquals(name + " counts the same agreement until then", seen(agreement(full)), seen(agreement(early)));
+			}
+			assertTrue(name + " counts less agreement with early termination", diverged);
+		}
+	}
+}
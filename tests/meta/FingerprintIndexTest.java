@@ -0,0 +1,109 @@
+/*
+ * VoteCacheTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.bayes.NaiveBayes;
+
+public class FingerprintIndexTest {
+
+	@Test
+	public void refreshReplacesTheOldestHalfOfTheProbes(){
+		FingerprintIndex index = new FingerprintIndex(8);
+		Instance[] first = TestStreams.concept(1, 1, 8);
+		for(Instance inst : first)
+			index.addProbe(inst);
+		NaiveBayes model = new NaiveBayes();
+		model.prepareForUse();
+		index.update(0, model);
+		assertTrue(index.has(0));
+
+		InstanceRingBuffer buffer = new InstanceRingBuffer(20);
+		Instance[] recent = TestStreams.concept(5, 2, 20);
+		for(Instance inst : recent)
+			buffer.add(inst);
+		//only every second drift refreshes
+		index.endDrift(buffer, 2);
+		assertTrue(index.has(0));
+		index.endDrift(buffer, 2);
+		assertEquals(1, index.getRefreshes());
+		assertTrue("signatures of the old probes are kept", index.has(0));
+		assertTrue(index.isStale(0));
+
+		Instance[] probes = index.probes.views();
+		for(int j = 0; j < 4; j++)
+			assertEquals(first[4 + j].value(0), probes[j].value(0), 0.0);
+		for(int j = 0; j < 4; j++)
+			assertEquals(recent[j * 5].value(0), probes[4 + j].value(0), 0.0);
+	}
+
+	@Test
+	public void staleSignaturesAreRefreshedOnTheReplacedProbesOnly(){
+		FingerprintIndex index = new FingerprintIndex(8);
+		for(Instance inst : TestStreams.concept(1, 1, 8))
+			index.addProbe(inst);
+		NaiveBayes model = new NaiveBayes();
+		model.prepareForUse();
+		for(Instance inst : TestStreams.concept(1, 3, 100))
+			model.trainOnInstance(inst);
+		index.update(0, model);
+
+		InstanceRingBuffer buffer = new InstanceRingBuffer(20);
+		for(Instance inst : TestStreams.concept(5, 2, 20))
+			buffer.add(inst);
+		index.endDrift(buffer, 1);
+		//the signature is still compared on the four probes it shares with the current ones
+		assertTrue(index.isComparable(0));
+		assertEquals(4, AgreementKernel.cardinality(index.currentProbes(0)));
+		index.refresh(0, model);
+		assertFalse(index.isStale(0));
+		assertEquals(0, AgreementKernel.disagreements(index.signature(model), index.signatures[0]));
+
+		//once every probe has been replaced the signature can no longer be compared
+		index.endDrift(buffer, 1);
+		index.endDrift(buffer, 1);
+		assertFalse(index.isComparable(0));
+		assertEquals(1, index.shortlist(new ArrayList<Integer>(Arrays.asList(0)), index.signature(model), 0).size());
+	}
+
+	@Test
+	public void reusingARecentModelSkipsTheProvisionalModel(){
+		CPF cpf = new CPF();
+		cpf.fingerprintCandidatesOption.setValue(1);
+		cpf.probeSizeOption.setValue(64);
+		cpf.similarityBetweenModelsOnBufferOption.setValue(0.8);
+		cpf.prepareForUse();
+		for(Instance inst : TestStreams.recurring(1500, 1, 5, 1, 5, 1, 5, 8, 1, 5, 8))
+			cpf.trainOnInstance(inst);
+		FingerprintIndex index = cpf.fingerprintIndex();
+		assertTrue(index.getRecentReuses() > 0);
+		//a search, and the provisional model it trains, is only made when no recent model was reused
+		assertTrue(index.searches + index.getRecentReuses() <= cpf.getNumDrifts());
+	}
+}
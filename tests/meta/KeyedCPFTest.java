@@ -0,0 +1,152 @@
+/*
+ * VoteCacheTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+public class KeyedCPFTest {
+
+	static final int KEYS = 8;
+
+	//every key sees the same recurring concepts, so they end up sharing the library's models
+	static Instance[] stream(int key){
+		return TestStreams.recurring(1500, 1 + key % 2, 5, 1 + key % 2, 5);
+	}
+
+	static KeyedCPF<Integer> train(CPF prototype, boolean concurrently) throws Exception {
+		final KeyedCPF<Integer> keyed = new KeyedCPF<Integer>(prototype);
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int k = 0; k < KEYS; k++){
+			final int key = k;
+			final Instance[] instances = stream(key);
+			Thread thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					try {
+						for(Instance inst : instances){
+							keyed.getVotesForInstance(key, inst);
+							keyed.trainOnInstance(key, inst);
+						}
+					} catch (Throwable t) {
+						synchronized(failures){
+							failures.add(t);
+						}
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+			if(!concurrently) thread.join();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		if(!failures.isEmpty()) throw new AssertionError(failures.get(0));
+		return keyed;
+	}
+
+	static void assertActiveConceptsStored(KeyedCPF<Integer> keyed){
+		for(int k = 0; k < KEYS; k++){
+			int concept = keyed.getActiveConcept(k);
+			assertTrue("key " + k + " has a concept", concept >= 0);
+			assertNotNull("key " + k + " uses a stored concept", keyed.getLibrary().get(concept));
+		}
+	}
+
+	@Test
+	public void keysReuseConceptsLearntByOtherKeys() throws Exception {
+		CPF prototype = new CPF();
+		prototype.similarityBetweenModelsOnBufferOption.setValue(0.8);
+		KeyedCPF<Integer> keyed = train(prototype, false);
+		assertActiveConceptsStored(keyed);
+		assertTrue("concepts are reused across keys", keyed.getModelReuses() > 0);
+		assertEquals(keyed.getNewConcepts() - keyed.getLibrary().getMerges() - keyed.getLibrary().getFaded()
+				- keyed.getLibrary().getEvicted(), keyed.getLibrary().getNumConcepts());
+	}
+
+	@Test
+	public void concurrentKeysShareTheLibrary() throws Exception {
+		KeyedCPF<Integer> keyed = train(new CPF(), true);
+		assertActiveConceptsStored(keyed);
+		assertEquals(keyed.getNewConcepts() - keyed.getLibrary().getMerges() - keyed.getLibrary().getFaded()
+				- keyed.getLibrary().getEvicted(), keyed.getLibrary().getNumConcepts());
+	}
+
+	@Test
+	public void unlabelledInstancesAreNotTrained(){
+		KeyedCPF<Integer> keyed = new KeyedCPF<Integer>(new CPF());
+		for(Instance inst : TestStreams.concept(1, 1, 500)){
+			Instance unlabelled = inst.copy();
+			unlabelled.setMissing(unlabelled.classIndex());
+			keyed.trainOnInstance(0, unlabelled);
+		}
+		assertEquals(0, keyed.getNumKeys());
+		assertEquals(-1, keyed.getActiveConcept(0));
+	}
+
+	@Test
+	public void keysInControlHoldNoBuffer() throws Exception {
+		KeyedCPF<Integer> keyed = train(new CPF(), false);
+		for(KeyedCPF.KeyState state : keyed.keys.values()){
+			if(state.level == KeyedCPF.INCONTROL || state.level == KeyedCPF.OUTCONTROL)
+				assertNull(state.buffer);
+			else
+				assertTrue(state.buffer.capacity() == keyed.bufferSize);
+		}
+	}
+
+	@Test
+	public void newConceptsRecordAgreementWithTheOthers() throws Exception {
+		KeyedCPF<Integer> keyed = new KeyedCPF<Integer>(new CPF());
+		for(Instance inst : stream(0))
+			keyed.trainOnInstance(0, inst);
+		ConceptLibrary library = keyed.getLibrary();
+		assertTrue(keyed.getNewConcepts() > 1);
+		//every concept after the first was compared with the ones stored when it was added
+		boolean compared = false;
+		for(int j = 1; j < library.size(); j++)
+			for(int i = 0; i < j; i++)
+				compared |= library.agreement.seen(i, j) > 0;
+		assertTrue(compared);
+	}
+
+	@Test
+	public void fadingAndTheBudgetBoundTheLibrary() throws Exception {
+		CPF prototype = new CPF();
+		prototype.fadeModelOption.set();
+		prototype.fadePointsOption.setValue(2);
+		prototype.maxMemoryOption.setValue(1e-6);
+		KeyedCPF<Integer> keyed = train(prototype, true);
+		assertActiveConceptsStored(keyed);
+		//only concepts in use survive a budget nothing fits in
+		ConceptLibrary library = keyed.getLibrary();
+		assertTrue(library.getNumConcepts() <= KEYS);
+		assertTrue(library.getFaded() + library.getEvicted() > 0);
+	}
+}
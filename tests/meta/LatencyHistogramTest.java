@@ -0,0 +1,66 @@
+/*
+ * LatencyHistogramTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Percentiles are bucket upper bounds within 1/SUB_BUCKETS of the exact
+ * latency.
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void bucketsCoverEveryLatency(){
+		long[] latencies = {0, 1, 31, 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+		for(long nanos : latencies){
+			int bucket = LatencyHistogram.bucket(nanos);
+			assertTrue(bucket < LatencyHistogram.NUM_BUCKETS);
+			assertTrue(nanos <= LatencyHistogram.upperBound(bucket));
+			assertTrue(bucket == 0 || nanos > LatencyHistogram.upperBound(bucket - 1));
+		}
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.NUM_BUCKETS - 1));
+	}
+
+	@Test
+	public void percentilesWithinOneSubBucket(){
+		LatencyHistogram histogram = new LatencyHistogram("test");
+		Random random = new Random(1);
+		long[] latencies = new long[100000];
+		for(int i = 0; i < latencies.length; i++){
+			//log-normal around 50us with a long tail
+			latencies[i] = (long) Math.exp(Math.log(50000) + random.nextGaussian());
+			histogram.record(latencies[i]);
+		}
+		Arrays.sort(latencies);
+		for(double quantile : new double[]{0.5, 0.9, 0.99, 0.999}){
+			long exact = latencies[(int) Math.ceil(quantile * latencies.length) - 1];
+			long reported = histogram.getPercentileNanos(quantile);
+			assertTrue(quantile + ": " + reported + " below " + exact, reported >= exact);
+			assertTrue(quantile + ": " + reported + " for " + exact, reported <= exact + exact / LatencyHistogram.SUB_BUCKETS);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * VoteCacheTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.bayes.NaiveBayes;
+
+public class MemoryBudgetTest {
+
+	static CPF newLearner(double maxMemory, int budgetCheckFreq){
+		CPF cpf = new CPF();
+		cpf.similarityBetweenModelsOnBufferOption.setValue(0.8);
+		cpf.hotModelsOption.setValue(1);
+		cpf.maxMemoryOption.setValue(maxMemory);
+		cpf.budgetCheckFreqOption.setValue(budgetCheckFreq);
+		cpf.prepareForUse();
+		return cpf;
+	}
+
+	@Test
+	public void budgetIsSetInMebibytes(){
+		assertEquals(3L << 20, newLearner(3, 0).modelBudget.getMaxBytes());
+		//beyond what an int of bytes could hold
+		assertEquals(4096L << 20, newLearner(4096, 0).modelBudget.getMaxBytes());
+	}
+
+	@Test
+	public void coldModelsAreMeasuredWithoutLoadingThem(){
+		CPF cpf = newLearner(1024, 0);
+		for(Instance inst : TestStreams.recurring(1500, 1, 5, 8, 1))
+			cpf.trainOnInstance(inst);
+		ModelRepository repository = cpf.classifierCollection;
+		ModelBudget budget = new ModelBudget(1L << 30, EvictionPolicy.LRU);
+		ArrayList<Integer> cold = new ArrayList<Integer>();
+		for(int slot : repository.liveModels())
+			if(!repository.isHot(slot)) cold.add(slot);
+		assertFalse("some models were spilled", cold.isEmpty());
+
+		long misses = repository.getMisses();
+		for(int slot : cold){
+			budget.measure(slot, repository);
+			assertTrue(budget.getBytes(slot) > 0);
+			assertFalse(repository.isHot(slot));
+		}
+		assertEquals(misses, repository.getMisses());
+	}
+
+	@Test
+	public void currentModelIsMeasuredBetweenDrifts(){
+		//a single concept has no drift, so only the checks between drifts measure the growing model
+		Instance[] stream = TestStreams.concept(1, 1, 3000);
+		CPF checked = newLearner(1024, 500);
+		CPF unchecked = newLearner(1024, 0);
+		for(Instance inst : stream){
+			checked.trainOnInstance(inst);
+			unchecked.trainOnInstance(inst);
+		}
+		assertEquals(0, checked.getNumDrifts());
+		assertTrue(checked.modelBudget.isMeasured(checked.activeSlot()));
+		assertFalse(unchecked.modelBudget.isMeasured(unchecked.activeSlot()));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void unmeasurableSizesAreRefused(){
+		//what every model measures as when sizeofag's agent is not loaded
+		NaiveBayes unmeasured = new NaiveBayes(){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public int measureByteSize(){
+				return 0;
+			}
+		};
+		unmeasured.prepareForUse();
+		new ModelBudget(1L << 30, EvictionPolicy.LRU).measure(0, unmeasured);
+	}
+
+	@Test
+	public void reusedModelsAreCreditedToTheirStoredSlot(){
+		ECPF ecpf = new ECPF();
+		ecpf.maxMemoryOption.setValue(1024);
+		ecpf.prepareForUse();
+		ModelRepository repository = ecpf.classifierCollection;
+		int checked = 0;
+		long drifts = 0;
+		for(Instance inst : TestStreams.recurring(1500, 1, 5, 1, 5, 1, 5)){
+			ecpf.trainOnInstance(inst);
+			if(ecpf.getNumDrifts() == drifts) continue;
+			drifts = ecpf.getNumDrifts();
+			//right after the drift the reused copy has not been trained, so it still shares the stored model
+			int current = ecpf.activeSlot();
+			if(!repository.isSharedCopy(current)) continue;
+			CopyOnWriteClassifier copy = (CopyOnWriteClassifier) repository.peekHot(current);
+			for(int slot : repository.liveModels()){
+				if(slot == current || !copy.shares(repository.peekHot(slot))) continue;
+				assertEquals(ecpf.modelBudget.getLastUsed(current), ecpf.modelBudget.getLastUsed(slot));
+				checked++;
+			}
+		}
+		assertTrue("some drift reused a stored model", checked > 0);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * VoteCacheTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+public class ServingSnapshotTest {
+
+	static CPF newLearner(){
+		CPF cpf = new CPF();
+		cpf.servingIntervalOption.setValue(100);
+		cpf.prepareForUse();
+		return cpf;
+	}
+
+	@Test
+	public void readersPredictWithCopiesTakenAtPublish(){
+		CPF cpf = newLearner();
+		Instance[] stream = TestStreams.concept(1, 1, 1000);
+		for(int i = 0; i < 500; i++)
+			cpf.trainOnInstance(stream[i]);
+		ServingSnapshot snapshot = cpf.getServingSnapshot();
+		assertEquals(cpf.servingCopiesOption.getValue(), snapshot.getNumCopies());
+		for(int i = 0; i < snapshot.getNumCopies(); i++){
+			assertNotSame("readers never predict with the trained model", cpf.activeModel(), snapshot.copies.get(i));
+			for(int j = 0; j < i; j++)
+				assertNotSame("no two readers share a copy", snapshot.copies.get(j), snapshot.copies.get(i));
+		}
+		assertArrayEquals(cpf.activeModel().getVotesForInstance(stream[500]), cpf.getServingVotes(stream[500]), 0.0);
+		for(int i = 0; i < snapshot.getNumCopies(); i++)
+			assertNotNull("every copy is handed back", snapshot.copies.get(i));
+
+		for(int i = 500; i < 1000; i++)
+			cpf.trainOnInstance(stream[i]);
+		assertTrue(cpf.getServingSnapshot().getGeneration() > snapshot.getGeneration());
+	}
+
+	@Test
+	public void batchesPublishEveryServingInterval(){
+		CPF cpf = newLearner();
+		Instance[] stream = TestStreams.concept(1, 1, 1000);
+		cpf.trainOnBatch(stream);
+		assertEquals(0, cpf.getNumDrifts());
+		//one snapshot at reset, then one every 100 instances
+		assertEquals(11, cpf.servingSnapshots);
+		assertEquals(1000, cpf.getServingSnapshot().getInstance());
+	}
+
+	@Test
+	public void readersRunWhileTheLearnerTrains() throws InterruptedException {
+		final CPF cpf = newLearner();
+		final Instance[] stream = TestStreams.recurring(2000, 1, 5, 1);
+		for(int i = 0; i < 200; i++)
+			cpf.trainOnInstance(stream[i]);
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		final AtomicBoolean done = new AtomicBoolean();
+		List<Thread> readers = new ArrayList<Thread>();
+		for(int r = 0; r < 4; r++){
+			Thread reader = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					try {
+						int i = 0;
+						while(!done.get()){
+							double[] votes = cpf.getServingVotes(stream[i++ % stream.length]);
+							if(votes == null) throw new AssertionError("no votes");
+						}
+					} catch (Throwable t) {
+						synchronized(failures){
+							failures.add(t);
+						}
+					}
+				}
+			});
+			readers.add(reader);
+			reader.start();
+		}
+		for(int i = 200; i < stream.length; i++)
+			cpf.trainOnInstance(stream[i]);
+		done.set(true);
+		for(Thread reader : readers)
+			reader.join();
+		if(!failures.isEmpty()) throw new AssertionError(failures.get(0));
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * ShadowTrainingTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * ECPF's contending model trained on a worker thread: the deterministic mode
+ * must match inline training however the stream is batched, and the worker
+ * must not outlive the learner.
+ */
+public class ShadowTrainingTest {
+
+	static ECPF newLearner(String shadowTraining, int modelCheckFreq){
+		ECPF ecpf = new ECPF();
+		ecpf.shadowTrainingOption.setChosenLabel(shadowTraining);
+		ecpf.modelCheckFreqOption.setValue(modelCheckFreq);
+		ecpf.prepareForUse();
+		return ecpf;
+	}
+
+	//batchSize 0 trains one instance at a time through trainOnInstance
+	static ECPF train(String shadowTraining, int modelCheckFreq, Instance[] instances, int batchSize){
+		ECPF ecpf = newLearner(shadowTraining, modelCheckFreq);
+		if(batchSize == 0){
+			for(Instance inst : instances)
+				ecpf.trainOnInstance(inst);
+		} else {
+			for(int from = 0; from < instances.length; from += batchSize)
+				ecpf.trainOnBatch(instances, from, Math.min(instances.length, from + batchSize));
+		}
+		ecpf.drainShadow();
+		return ecpf;
+	}
+
+	static void assertSameModels(ECPF expected, ECPF actual){
+		assertEquals(expected.getNumDrifts(), actual.getNumDrifts());
+		assertEquals(expected.getModelReuses(), actual.getModelReuses());
+		assertEquals(expected.reuseFlag, actual.reuseFlag);
+		assertEquals(expected.currCorrect, actual.currCorrect);
+		assertEquals(expected.newCorrect, actual.newCorrect);
+		for(Instance inst : TestStreams.concept(5, 99, 300)){
+			assertArrayEquals(expected.getVotesForInstance(inst), actual.getVotesForInstance(inst), 0);
+			if(expected.newModel != null)
+				assertArrayEquals(expected.newModel.getVotesForInstance(inst), actual.newModel.getVotesForInstance(inst), 0);
+		}
+	}
+
+	@Test
+	public void deterministicMatchesInlineForAnyBatching(){
+		Instance[] instances = TestStreams.recurring(3000, 1, 5, 1, 5);
+		for(int modelCheckFreq : new int[]{1, 25}){
+			ECPF inline = train("inline", modelCheckFreq, instances, 0);
+			assertTrue(inline.getNumDrifts() > 0);
+			for(int batchSize : new int[]{0, 1, 7, 256, 5000}){
+				ECPF deterministic = train("pipelinedDeterministic", modelCheckFreq, instances, batchSize);
+				assertSameModels(inline, deterministic);
+				deterministic.close();
+			}
+			inline.close();
+		}
+	}
+
+	@Test
+	public void copiesAndClosedLearnersHoldNoWorker(){
+		ECPF ecpf = train("pipelined", 10, TestStreams.recurring(3000, 1, 5), 0);
+		assertNotNull(ecpf.shadow);
+		ShadowTrainer shadow = ecpf.shadow;
+
+		ECPF copy = (ECPF) ecpf.copy();
+		assertNull(copy.shadow);
+
+		ecpf.close();
+		assertNull(ecpf.shadow);
+		assertFalse(shadow.isWorkerAlive());
+	}
+
+	@Test
+	public void idleWorkerExitsAndRestarts() throws InterruptedException {
+		ECPF ecpf = train("pipelined", 10, TestStreams.recurring(3000, 1, 5), 0);
+		ShadowTrainer shadow = ecpf.shadow;
+		long waited = 0;
+		while(shadow.isWorkerAlive() && waited < 5000){
+			Thread.sleep(20);
+			waited += 20;
+		}
+		assertFalse("an idle worker exits", shadow.isWorkerAlive());
+
+		//training again starts a new worker for the same model
+		for(Instance inst : TestStreams.concept(5, 7, 500))
+			ecpf.trainOnInstance(inst);
+		ecpf.drainShadow();
+		assertTrue(shadow.getPredicted() > 0);
+		ecpf.close();
+	}
+
+	@Test
+	public void workerNeverCopiesASharedModel(){
+		CopyOnWriteClassifier reused = new CopyOnWriteClassifier(CopyOnWriteClassifierTest.trained());
+		ShadowTrainer shadow = new ShadowTrainer(16);
+		//the copy is taken on this thread, before the worker can see the model
+		shadow.setModel(reused, 0, 0);
+		assertFalse(reused.isShared());
+		shadow.close();
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * TestStreams.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.streams.generators.AgrawalGenerator;
+
+/**
+ * Fixed Agrawal streams for the tests, where each function is one concept
+ * as in CPFBenchmark.
+ */
+class TestStreams {
+
+	//instances of one concept
+	static Instance[] concept(int function, int seed, int count){
+		AgrawalGenerator stream = new AgrawalGenerator();
+		stream.functionOption.setValue(function);
+		stream.instanceRandomSeedOption.setValue(seed);
+		stream.prepareForUse();
+		Instance[] instances = new Instance[count];
+		for(int i = 0; i < count; i++)
+			instances[i] = stream.nextInstance().getData();
+		return instances;
+	}
+
+	//abrupt switches between the given functions, count instances each, which gives CPF and ECPF several drifts
+	static Instance[] recurring(int count, int... functions){
+		Instance[] instances = new Instance[count * functions.length];
+		for(int k = 0; k < functions.length; k++)
+			System.arraycopy(concept(functions[k], k + 1, count), 0, instances, k * count, count);
+		return instances;
+	}
+
+	static AbstractCPF newLearner(String learner){
+		AbstractCPF cpf = learner.equals("ECPF") ? new ECPF() : new CPF();
+		cpf.prepareForUse();
+		return cpf;
+	}
+}
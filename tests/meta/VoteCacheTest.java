@@ -0,0 +1,79 @@
+/*
+ * VoteCacheTest.java
+ * author: Robert William Anderson - The University of Auckland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ *
+ */
+
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Votes shared between prediction and training must never be returned for
+ * an instance whose values have changed, as with views refilled in place.
+ */
+public class VoteCacheTest {
+
+	static final String[] LEARNERS = {"CPF", "ECPF"};
+
+	static void refill(Instance view, Instance from){
+		for(int a = 0; a < from.numAttributes(); a++)
+			view.setValue(a, from.value(a));
+		view.setWeight(from.weight());
+	}
+
+	@Test
+	public void predictionsFollowRefilledInstance(){
+		for(String learner : LEARNERS){
+			AbstractCPF cpf = TestStreams.newLearner(learner);
+			for(Instance inst : TestStreams.concept(1, 1, 2000))
+				cpf.trainOnInstance(inst);
+			Instance view = TestStreams.concept(2, 2, 1)[0].copy();
+			for(Instance inst : TestStreams.concept(2, 3, 500)){
+				refill(view, inst);
+				assertArrayEquals(learner, cpf.getVotesForInstance(inst), cpf.getVotesForInstance(view), 0);
+			}
+		}
+	}
+
+	@Test
+	public void trainingFollowsRefilledInstance(){
+		for(String learner : LEARNERS){
+			Instance[] instances = TestStreams.recurring(2000, 1, 5, 1);
+			Instance[] other = TestStreams.concept(3, 7, instances.length);
+			AbstractCPF expected = TestStreams.newLearner(learner);
+			AbstractCPF refilled = TestStreams.newLearner(learner);
+			Instance view = instances[0].copy();
+			for(int i = 0; i < instances.length; i++){
+				expected.getVotesForInstance(instances[i]);
+				expected.trainOnInstance(instances[i]);
+				//the view is predicted with other values, then refilled and trained on
+				refill(view, other[i]);
+				refilled.getVotesForInstance(view);
+				refill(view, instances[i]);
+				refilled.trainOnInstance(view);
+			}
+			assertEquals(learner, expected.getNumDrifts(), refilled.getNumDrifts());
+			for(Instance inst : TestStreams.concept(5, 9, 200))
+				assertArrayEquals(learner, expected.getVotesForInstance(inst), refilled.getVotesForInstance(inst), 0);
+		}
+	}
+}